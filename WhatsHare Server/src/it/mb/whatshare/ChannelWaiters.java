@@ -0,0 +1,121 @@
+/**
+ * ChannelWaiters.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets requests wait for something to change for a channel, such as the
+ * {@link User} for it being registered or getting a new access token, rather
+ * than having clients poll for it.
+ * 
+ * <p>
+ * Waiters only hear about changes made on this node, which is where all
+ * requests for the channel go when running in a cluster (see
+ * {@link ClusterRing}). Otherwise, waiters should also check for changes
+ * themselves every now and then.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class ChannelWaiters {
+
+    /**
+     * The longest time requests are allowed to wait, in milliseconds
+     * (requests on App Engine are killed after 60 seconds).
+     */
+    public static final long MAX_WAIT = 50 * 1000L;
+
+    /**
+     * All the requests waiting on a channel, which are released together.
+     */
+    public static class Waiter {
+
+        private final String channelId;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private int count;
+
+        private Waiter(String channelId) {
+            this.channelId = channelId;
+        }
+
+        /**
+         * Waits until the channel changes, or <code>millis</code>
+         * milliseconds go by.
+         * 
+         * @param millis
+         *            how long to wait at most, capped to {@link #MAX_WAIT}
+         * @return <code>true</code> if the channel changed
+         */
+        public boolean await(long millis) {
+            try {
+                return latch.await(Math.min(millis, MAX_WAIT),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // guarded by ChannelWaiters.class
+    private static final Map<String, Waiter> WAITERS = new HashMap<String, Waiter>();
+
+    private ChannelWaiters() {
+        // don't instantiate me!
+    }
+
+    /**
+     * Registers the current request as waiting for the argument
+     * <code>channelId</code> to change.
+     * 
+     * <p>
+     * Callers must register <em>before</em> checking whether what they wait
+     * for already happened, so that no change goes unnoticed, and must call
+     * {@link #release(Waiter)} when they're done waiting.
+     * 
+     * @param channelId
+     *            the GCM ID of a Chrome Extension
+     * @return the waiter to {@link Waiter#await(long)} on
+     */
+    public static synchronized Waiter register(String channelId) {
+        Waiter waiter = WAITERS.get(channelId);
+        if (waiter == null) {
+            waiter = new Waiter(channelId);
+            WAITERS.put(channelId, waiter);
+        }
+        waiter.count++;
+        return waiter;
+    }
+
+    /**
+     * Tells the registry that a request is no longer waiting.
+     * 
+     * @param waiter
+     *            the waiter returned by {@link #register(String)}
+     */
+    public static synchronized void release(Waiter waiter) {
+        waiter.count--;
+        if (waiter.count == 0 && WAITERS.get(waiter.channelId) == waiter) {
+            WAITERS.remove(waiter.channelId);
+        }
+    }
+
+    /**
+     * Wakes up all requests waiting on the argument <code>channelId</code>.
+     * 
+     * @param channelId
+     *            the GCM ID of the Chrome Extension that changed
+     */
+    public static synchronized void wakeUp(String channelId) {
+        Waiter waiter = channelId == null ? null : WAITERS.remove(channelId);
+        if (waiter != null) {
+            waiter.latch.countDown();
+        }
+    }
+}
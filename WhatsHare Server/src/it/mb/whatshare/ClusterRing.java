@@ -0,0 +1,160 @@
+/**
+ * ClusterRing.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring that assigns every channelId to one of the nodes of
+ * the cluster, so that all requests for a Chrome Extension are handled by the
+ * same node.
+ * 
+ * <p>
+ * Membership is static, and read from system properties (see
+ * <code>appengine-web.xml</code>):
+ * <ul>
+ * <li><code>whatshare.cluster.nodes</code> is a comma-separated list of the
+ * base URLs of all nodes (e.g.
+ * <code>http://localhost:8888,http://localhost:8889</code>)</li>
+ * <li><code>whatshare.cluster.self</code> is the base URL of this node, which
+ * must be one of the nodes</li>
+ * </ul>
+ * If either property is missing, the server runs as a single node that owns
+ * all channels. To try cluster mode locally, start one dev server per node on
+ * different ports, all with the same node list and each with its own
+ * <code>whatshare.cluster.self</code>.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class ClusterRing {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final String SELF = normalize(System
+            .getProperty("whatshare.cluster.self"));
+    private static final List<String> NODES = parseNodes(System
+            .getProperty("whatshare.cluster.nodes"));
+    private static final SortedMap<Long, String> RING = buildRing(NODES);
+
+    private ClusterRing() {
+        // don't instantiate me!
+    }
+
+    private static String normalize(String url) {
+        if (url == null || url.trim().isEmpty()) {
+            return null;
+        }
+        url = url.trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static List<String> parseNodes(String nodes) {
+        List<String> parsed = new ArrayList<String>();
+        if (nodes != null) {
+            for (String node : nodes.split(",")) {
+                node = normalize(node);
+                if (node != null && !parsed.contains(node)) {
+                    parsed.add(node);
+                }
+            }
+        }
+        if (SELF == null || !parsed.contains(SELF)) {
+            if (!parsed.isEmpty()) {
+                System.err.println("this node (" + SELF
+                        + ") is not in the cluster, running standalone");
+            }
+            parsed.clear();
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    private static SortedMap<Long, String> buildRing(List<String> nodes) {
+        SortedMap<Long, String> ring = new TreeMap<Long, String>();
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+        return ring;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            // every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns whether this server is part of a cluster.
+     * 
+     * @return <code>true</code> if there's more than one node
+     */
+    public static boolean isClustered() {
+        return NODES.size() > 1;
+    }
+
+    /**
+     * Returns the base URL of this node.
+     * 
+     * @return this node's URL, or <code>null</code> if not running in a
+     *         cluster
+     */
+    public static String self() {
+        return isClustered() ? SELF : null;
+    }
+
+    /**
+     * Returns the base URL of the node that owns the argument
+     * <code>channelId</code>.
+     * 
+     * @param channelId
+     *            a Chrome Extension's GCM ID
+     * @return the base URL of the owner node, or <code>null</code> if not
+     *         running in a cluster
+     */
+    public static String ownerOf(String channelId) {
+        if (!isClustered() || channelId == null) {
+            return self();
+        }
+        SortedMap<Long, String> tail = RING.tailMap(hash(channelId));
+        Map.Entry<Long, String> owner = tail.isEmpty() ? null : tail
+                .entrySet().iterator().next();
+        return owner == null ? RING.get(RING.firstKey()) : owner.getValue();
+    }
+
+    /**
+     * Returns whether the argument <code>channelId</code> is owned by this
+     * node.
+     * 
+     * @param channelId
+     *            a Chrome Extension's GCM ID
+     * @return <code>true</code> if requests for <code>channelId</code> must be
+     *         handled by this node
+     */
+    public static boolean isLocal(String channelId) {
+        String owner = ownerOf(channelId);
+        return owner == null || owner.equals(SELF);
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * ClusterRouter.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Forwards requests for channels owned by other nodes of the cluster (see
+ * {@link ClusterRing}) to their owner.
+ * 
+ * <p>
+ * Forwarded requests carry the {@link #FORWARDED_HEADER}, and are always
+ * handled by the node receiving them, so that nodes that disagree on
+ * membership can't bounce requests back and forth. If no connection to the
+ * owner can be established, requests are handled locally: all durable state
+ * lives in the datastore, so that's only slower, not wrong (pairing sessions
+ * are the exception, see {@link PairingSessions}). Once a request was sent,
+ * though, the owner may have handled it already, so failures from then on
+ * are reported to the caller instead (handling the request again could
+ * deliver the same message twice).
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class ClusterRouter {
+
+    /**
+     * Header added to requests forwarded to another node, whose value is the
+     * forwarding node's URL.
+     */
+    public static final String FORWARDED_HEADER = "X-WhatsHare-Forwarded";
+
+    private static final int FORWARD_TIMEOUT = 5000;
+    // the owner may spend its whole budget before replying
+    private static final int REPLY_TIMEOUT = (int) Deadline.REQUEST_BUDGET
+            + FORWARD_TIMEOUT;
+    private static final int BAD_GATEWAY = 502;
+    private static final int GATEWAY_TIMEOUT = 504;
+    private static final int MAX_CONNECTIONS_PER_NODE = 20;
+    private static final DefaultHttpClient CLIENT = createClient();
+
+    private ClusterRouter() {
+        // don't instantiate me!
+    }
+
+    private static DefaultHttpClient createClient() {
+        PoolingClientConnectionManager connections = new PoolingClientConnectionManager();
+        connections.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_NODE);
+        connections.setMaxTotal(MAX_CONNECTIONS_PER_NODE * 10);
+        DefaultHttpClient client = new DefaultHttpClient(connections);
+        HttpParams params = client.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, FORWARD_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, REPLY_TIMEOUT);
+        // redirects are for the original caller to follow
+        HttpClientParams.setRedirecting(params, false);
+        return client;
+    }
+
+    /**
+     * Forwards the current request to the node owning <code>channelId</code>,
+     * unless it's this one.
+     * 
+     * <p>
+     * This method returns normally when the request must be handled locally;
+     * otherwise, it throws a {@link WebApplicationException} carrying the
+     * owner's reply, which Jersey sends back to the caller, or a
+     * <code>502</code>/<code>504</code> status if the request was sent but
+     * no reply came back.
+     * 
+     * @param channelId
+     *            the channel the current request is about
+     * @param method
+     *            the HTTP method of the current request, either
+     *            {@link HttpMethod#GET} or {@link HttpMethod#POST}
+     * @param uriInfo
+     *            the URI of the current request
+     * @param headers
+     *            the headers of the current request
+     * @param body
+     *            the body of the current request, <code>null</code> for
+     *            {@link HttpMethod#GET}
+     * @throws WebApplicationException
+     *             with the owner's reply, if the request was forwarded
+     */
+    public static void routeToOwner(String channelId, String method,
+            UriInfo uriInfo, HttpHeaders headers, String body) {
+        routeToOwner(channelId, method, uriInfo, headers, body, 0);
+    }
+
+    /**
+     * Forwards the current request to the node owning <code>channelId</code>
+     * like {@link #routeToOwner(String, String, UriInfo, HttpHeaders, String)}
+     * does, giving the owner <code>extraTime</code> milliseconds more than
+     * usual to reply, for requests that are expected to take long.
+     * 
+     * @param channelId
+     *            the channel the current request is about
+     * @param method
+     *            the HTTP method of the current request, either
+     *            {@link HttpMethod#GET} or {@link HttpMethod#POST}
+     * @param uriInfo
+     *            the URI of the current request
+     * @param headers
+     *            the headers of the current request
+     * @param body
+     *            the body of the current request, <code>null</code> for
+     *            {@link HttpMethod#GET}
+     * @param extraTime
+     *            how long the owner may take to reply on top of the usual
+     *            timeout, in milliseconds
+     * @throws WebApplicationException
+     *             with the owner's reply, if the request was forwarded
+     */
+    public static void routeToOwner(String channelId, String method,
+            UriInfo uriInfo, HttpHeaders headers, String body, long extraTime) {
+        if (ClusterRing.isLocal(channelId)
+                || headers.getRequestHeader(FORWARDED_HEADER) != null) {
+            return;
+        }
+        String owner = ClusterRing.ownerOf(channelId);
+        URI uri = uriInfo.getRequestUri();
+        String target = owner + uri.getRawPath()
+                + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        String origin = uri.getScheme() + "://" + uri.getRawAuthority();
+        Response reply = forward(owner, origin, target, method, headers,
+                body, extraTime);
+        if (reply != null) {
+            throw new WebApplicationException(reply);
+        }
+    }
+
+    private static Response forward(String owner, String origin,
+            String target, String method, HttpHeaders headers, String body,
+            long extraTime) {
+        HttpRequestBase request;
+        if (HttpMethod.POST.equals(method)) {
+            HttpPost post = new HttpPost(target);
+            try {
+                post.setEntity(new StringEntity(body == null ? "" : body,
+                        "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (headers.getMediaType() != null) {
+                post.setHeader(HttpHeaders.CONTENT_TYPE, headers
+                        .getMediaType().toString());
+            }
+            request = post;
+        } else {
+            request = new HttpGet(target);
+        }
+        request.setHeader(FORWARDED_HEADER, ClusterRing.self());
+        if (extraTime > 0) {
+            HttpConnectionParams.setSoTimeout(request.getParams(),
+                    (int) (REPLY_TIMEOUT + extraTime));
+        }
+        System.out.println("forwarding to " + target);
+        try {
+            HttpResponse response = CLIENT.execute(request);
+            ResponseBuilder builder = Response.status(response
+                    .getStatusLine().getStatusCode());
+            for (String name : new String[] { HttpHeaders.CONTENT_TYPE,
+                    HttpHeaders.LOCATION }) {
+                Header header = response.getFirstHeader(name);
+                if (header != null) {
+                    String value = header.getValue();
+                    if (value.startsWith(owner)) {
+                        // callers must not be sent to nodes directly
+                        value = origin + value.substring(owner.length());
+                    }
+                    builder.header(name, value);
+                }
+            }
+            if (response.getEntity() != null) {
+                // also releases the connection to the pool
+                builder.entity(EntityUtils.toString(response.getEntity(),
+                        "UTF-8"));
+            }
+            return builder.build();
+        } catch (HttpHostConnectException e) {
+            return handleLocally(request, target, e);
+        } catch (ConnectTimeoutException e) {
+            return handleLocally(request, target, e);
+        } catch (SocketTimeoutException e) {
+            e.printStackTrace();
+            request.abort();
+            System.err.println("no reply from owner: " + target);
+            return Response.status(GATEWAY_TIMEOUT).build();
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.abort();
+            System.err.println("broken reply from owner: " + target);
+            return Response.status(BAD_GATEWAY).build();
+        }
+    }
+
+    private static Response handleLocally(HttpRequestBase request,
+            String target, IOException e) {
+        // nothing was sent, so the owner can't have handled the request
+        e.printStackTrace();
+        request.abort();
+        System.err.println("owner unreachable, handling locally: " + target);
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Deadline.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+/**
+ * The point in time by which a request must be answered.
+ * 
+ * <p>
+ * A deadline is created when a request comes in and is handed down to every
+ * method that talks to other servers on its behalf, so that they don't start
+ * work that can't be finished before the caller stops waiting.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public final class Deadline {
+
+    /**
+     * How long clients are expected to wait for replies, in milliseconds.
+     */
+    public static final long REQUEST_BUDGET = Long.getLong(
+            "whatshare.request.budget", 10 * 1000L);
+
+    /**
+     * How long a request can last overall, in milliseconds (App Engine kills
+     * requests after 60 seconds, this leaves some time to reply).
+     */
+    public static final long REQUEST_LIMIT = 55 * 1000L;
+
+    /**
+     * A deadline that never expires.
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Returns a deadline expiring <code>millis</code> milliseconds from now.
+     * 
+     * @param millis
+     *            the time budget in milliseconds
+     * @return a new deadline
+     */
+    public static Deadline in(long millis) {
+        return new Deadline(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Returns a deadline for a request that has just come in, which expires
+     * after {@link #REQUEST_BUDGET} milliseconds.
+     * 
+     * @return a new deadline
+     */
+    public static Deadline forRequest() {
+        return in(REQUEST_BUDGET);
+    }
+
+    /**
+     * Returns a deadline for work done on behalf of a request that came in at
+     * <code>started</code> and has been held since (e.g. a long poll), which
+     * expires after {@link #REQUEST_BUDGET} milliseconds or when the request
+     * reaches {@link #REQUEST_LIMIT}, whichever comes first.
+     * 
+     * @param started
+     *            when the request came in, as returned by
+     *            {@link System#currentTimeMillis()}
+     * @return a new deadline
+     */
+    public static Deadline forRequest(long started) {
+        return new Deadline(Math.min(System.currentTimeMillis()
+                + REQUEST_BUDGET, started + REQUEST_LIMIT));
+    }
+
+    /**
+     * Returns how much time is left before this deadline expires.
+     * 
+     * @return the remaining time in milliseconds, <code>0</code> if this
+     *         deadline already expired, {@link Long#MAX_VALUE} for
+     *         {@link #NONE}
+     */
+    public long remaining() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Returns whether this deadline already expired.
+     * 
+     * @return <code>true</code> if there's no time left
+     */
+    public boolean isExpired() {
+        return remaining() == 0;
+    }
+
+    public String toString() {
+        return this == NONE ? "deadline {none}" : "deadline {" + remaining()
+                + "ms left}";
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * HostLatency.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a running estimate of how long requests to a single host take.
+ * 
+ * <p>
+ * The estimate is an exponentially weighted moving average of latencies and
+ * of their variance, so older samples weigh less and less; the 95th
+ * percentile is approximated as <code>mean + 1.645 * stddev</code>, which is
+ * good enough to tell outliers from regular replies.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class HostLatency {
+
+    private static final double ALPHA = 0.1;
+    private static final double P95_DEVIATIONS = 1.645;
+    private static final int MIN_SAMPLES = 10;
+    private static final ConcurrentMap<String, HostLatency> HOSTS = new ConcurrentHashMap<String, HostLatency>();
+
+    private final String host;
+    private double mean;
+    private double variance;
+    private long samples;
+
+    private HostLatency(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Returns the latency estimate for the host in the argument
+     * <code>url</code>.
+     * 
+     * @param url
+     *            a URL, or just a host name
+     * @return the estimate for that host, never <code>null</code>
+     */
+    public static HostLatency of(String url) {
+        String host = URI.create(url).getHost();
+        if (host == null) {
+            host = url;
+        }
+        HostLatency latency = HOSTS.get(host);
+        if (latency == null) {
+            latency = new HostLatency(host);
+            HostLatency previous = HOSTS.putIfAbsent(host, latency);
+            if (previous != null) {
+                latency = previous;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Adds a sample to this estimate.
+     * 
+     * <p>
+     * Requests that timed out should be recorded too, with the time they were
+     * given up after: otherwise a host that gets slower than its timeouts
+     * never makes its estimate (and so its timeouts) grow.
+     * 
+     * @param millis
+     *            how long a request took, in milliseconds
+     */
+    public synchronized void record(long millis) {
+        if (samples == 0) {
+            mean = millis;
+        } else {
+            double delta = millis - mean;
+            mean += ALPHA * delta;
+            variance = (1 - ALPHA) * (variance + ALPHA * delta * delta);
+        }
+        samples++;
+    }
+
+    /**
+     * Returns whether enough samples were collected for estimates to be
+     * meaningful.
+     * 
+     * @return <code>true</code> if estimates can be trusted
+     */
+    public synchronized boolean isKnown() {
+        return samples >= MIN_SAMPLES;
+    }
+
+    /**
+     * Returns the estimated average latency for this host.
+     * 
+     * @return the average latency in milliseconds, or <code>-1</code> if not
+     *         enough samples were collected yet
+     */
+    public synchronized long getMean() {
+        return isKnown() ? Math.round(mean) : -1;
+    }
+
+    /**
+     * Returns the estimated 95th percentile of latencies for this host.
+     * 
+     * @return the 95th percentile in milliseconds, or <code>-1</code> if not
+     *         enough samples were collected yet
+     */
+    public synchronized long getP95() {
+        return isKnown() ? Math.round(mean + P95_DEVIATIONS
+                * Math.sqrt(variance)) : -1;
+    }
+
+    public synchronized String toString() {
+        return String.format("%s: mean %.1fms, p95 %dms (%d samples)", host,
+                mean, getP95(), samples);
+    }
+}
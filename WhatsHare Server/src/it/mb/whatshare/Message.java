@@ -7,9 +7,37 @@ package it.mb.whatshare;
 /**
  * Base superclass for all messages that this server can receive.
  * 
+ * <p>
+ * Every message kind is identified by its {@link #getType()}, which is also
+ * the value of the {@link MessageRegistry#TYPE_FIELD} discriminator in the
+ * JSON sent by clients; the matching {@link MessageCodec} must be registered
+ * with the {@link MessageRegistry} for the server to understand it.
+ * 
  * @author Michele Bonazza
  * 
  */
 public interface Message {
 
+    /**
+     * Returns the type of this message, which is the value of the
+     * discriminator field used to pick the {@link MessageCodec} for it.
+     * 
+     * @return the type of this message
+     */
+    String getType();
+
+    /**
+     * Returns the GCM channel ID of the Chrome Extension this message must be
+     * delivered to.
+     * 
+     * @return the recipient's channelId
+     */
+    String getRecipientId();
+
+    /**
+     * Returns whether all fields are populated for this message.
+     * 
+     * @return <code>true</code> if this message can be delivered
+     */
+    boolean isValid();
 }
@@ -0,0 +1,108 @@
+/**
+ * MessageCodec.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Converts a single kind of {@link Message} from the JSON sent by clients, and
+ * to the payload delivered to the Chrome Extension.
+ * 
+ * <p>
+ * Codecs read and write fields explicitly, so no reflection is involved when
+ * handling messages: one instance per message kind is created when the
+ * {@link MessageRegistry} is loaded, and shared from then on.
+ * 
+ * @author Michele Bonazza
+ * 
+ * @param <T>
+ *            the type of message handled by this codec
+ */
+public abstract class MessageCodec<T extends Message> {
+
+    private final String type;
+    private final Class<T> messageClass;
+
+    /**
+     * Creates a new codec for messages of the argument <code>type</code>.
+     * 
+     * @param type
+     *            the value of the discriminator field for this message kind
+     * @param messageClass
+     *            the class of messages handled by this codec
+     */
+    protected MessageCodec(String type, Class<T> messageClass) {
+        this.type = type;
+        this.messageClass = messageClass;
+    }
+
+    /**
+     * Returns the value of the discriminator field for this message kind.
+     * 
+     * @return the type handled by this codec
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Creates a new message out of the argument <code>json</code> tree.
+     * 
+     * <p>
+     * Missing fields are left <code>null</code>, it's up to
+     * {@link Message#isValid()} to tell whether the message can be delivered.
+     * 
+     * @param json
+     *            the JSON object sent by the client
+     * @return the decoded message, never <code>null</code>
+     */
+    public abstract T decode(JsonNode json);
+
+    /**
+     * Creates the payload to be delivered to the Chrome Extension for the
+     * argument <code>message</code>.
+     * 
+     * @param message
+     *            the message to be encoded
+     * @return the payload for GCM
+     * @throws JSONException
+     *             in case the payload can't be created
+     */
+    protected abstract JSONObject encode(T message) throws JSONException;
+
+    /**
+     * Creates the payload to be delivered to the Chrome Extension for the
+     * argument <code>message</code>, which must be of the kind handled by this
+     * codec.
+     * 
+     * @param message
+     *            the message to be encoded
+     * @return the payload for GCM
+     * @throws JSONException
+     *             in case the payload can't be created
+     */
+    public JSONObject toPayload(Message message) throws JSONException {
+        return encode(messageClass.cast(message));
+    }
+
+    /**
+     * Returns the text value of the argument <code>field</code> within
+     * <code>json</code>.
+     * 
+     * @param json
+     *            the JSON object to be read
+     * @param field
+     *            the name of the field
+     * @return the text value of the field, or <code>null</code> if there's no
+     *         such field or it's not a String
+     */
+    protected static String text(JsonNode json, String field) {
+        JsonNode value = json.get(field);
+        return value != null && value.isTextual() ? value.getTextValue()
+                : null;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * MessageDispatcher.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import it.mb.whatshare.NetworkingUtils.Reply;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jettison.json.JSONException;
+
+/**
+ * Relays {@link Message}'s coming from Android devices to the Chrome
+ * Extension they're meant for.
+ * 
+ * <p>
+ * All kinds of messages share the same delivery path: they're decoded by the
+ * {@link MessageRegistry}, validated, and then pushed to the recipient's GCM
+ * channel using the access token of the {@link User} registered for it.
+ * Messages that can't be delivered because of transient failures are stored
+ * in the {@link OutboundQueue}.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Path("/message")
+public class MessageDispatcher {
+
+    private static final String CHROME_GCM_URL = "https://www.googleapis.com/gcm_for_chrome/v1/messages";
+
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private HttpHeaders headers;
+
+    /**
+     * Handles messages of any registered type coming from Android devices,
+     * except for {@link PairingResponse}'s, which are only accepted by
+     * {@link PairingManager#replyToRequest(String)} for pairings in progress.
+     * 
+     * @param json
+     *            the message, which must include the
+     *            {@link MessageRegistry#TYPE_FIELD} discriminator
+     * @return the response returned by {@link #dispatch(Message, Deadline)}
+     * @throws WebApplicationException
+     *             with a {@link Status#BAD_REQUEST} status if
+     *             <code>json</code> is a pairing response
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response receive(String json) {
+        Deadline deadline = Deadline.forRequest();
+        Message msg = MessageRegistry.decode(json, null);
+        if (msg instanceof PairingResponse) {
+            // don't let anybody skip the pairing session check
+            throw new WebApplicationException(Response.status(
+                    Status.BAD_REQUEST).build());
+        }
+        if (msg != null) {
+            ClusterRouter.routeToOwner(msg.getRecipientId(), HttpMethod.POST,
+                    uriInfo, headers, json);
+        }
+        return dispatch(msg, deadline);
+    }
+
+    /**
+     * Outcome of an attempt to deliver a payload to a Chrome Extension.
+     */
+    enum DeliveryResult {
+        /**
+         * The payload was accepted by GCM.
+         */
+        DELIVERED,
+        /**
+         * There's no registered {@link User} for the recipient.
+         */
+        NO_USER,
+        /**
+         * A valid access token couldn't be retrieved, or GCM couldn't be
+         * reached or didn't reply in time: the payload can be delivered again
+         * later.
+         */
+        FAILED,
+        /**
+         * The user's refresh token was revoked, or GCM rejected the payload:
+         * delivering it again won't work.
+         */
+        REJECTED
+    }
+
+    /**
+     * Delivers the argument <code>msg</code> to its recipient.
+     * 
+     * <p>
+     * If the recipient is registered but the message can't be delivered right
+     * now, it's handed to the {@link OutboundQueue} for later redelivery;
+     * messages that GCM rejects, or whose recipient revoked access, are not.
+     * 
+     * @param msg
+     *            the message to be delivered
+     * @param deadline
+     *            the deadline for the request on whose behalf the message is
+     *            delivered
+     * @return a successful response in case the message was delivered, a
+     *         {@link Status#ACCEPTED} response if it was queued, a
+     *         {@link Status#UNAUTHORIZED} message if there's no
+     *         {@link User} for its recipient or the message was rejected
+     * @throws WebApplicationException
+     *             with a {@link Status#BAD_REQUEST} status if
+     *             <code>msg</code> is <code>null</code> or not valid
+     */
+    public static Response dispatch(Message msg, Deadline deadline) {
+        return dispatch(msg, null, deadline);
+    }
+
+    /**
+     * Delivers the argument <code>msg</code> to its recipient like
+     * {@link #dispatch(Message, Deadline)} does, using the argument
+     * <code>user</code> instead of looking it up on the datastore.
+     * 
+     * @param msg
+     *            the message to be delivered
+     * @param user
+     *            the user registered for the recipient of <code>msg</code>,
+     *            or <code>null</code> to look it up
+     * @param deadline
+     *            the deadline for the request on whose behalf the message is
+     *            delivered
+     * @return a successful response in case the message was delivered, a
+     *         {@link Status#ACCEPTED} response if it was queued, a
+     *         {@link Status#UNAUTHORIZED} message if there's no
+     *         {@link User} for its recipient or the message was rejected
+     * @throws WebApplicationException
+     *             with a {@link Status#BAD_REQUEST} status if
+     *             <code>msg</code> is <code>null</code> or not valid
+     */
+    static Response dispatch(Message msg, User user, Deadline deadline) {
+        System.out.println("dispatching message: " + msg);
+        checkValid(msg);
+        String payload;
+        try {
+            payload = MessageRegistry.toPayload(msg).toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+        if (user == null) {
+            user = User.fromChannelId(msg.getRecipientId());
+        }
+        switch (deliver(user, payload, deadline)) {
+        case DELIVERED:
+            return Response.status(Status.OK).build();
+        case FAILED:
+            OutboundQueue.enqueue(msg.getRecipientId(), payload);
+            return Response.status(Status.ACCEPTED).build();
+        default:
+            return Response.status(Status.UNAUTHORIZED).build();
+        }
+    }
+
+    private static void checkValid(Message msg) {
+        if (msg == null || !msg.isValid()) {
+            ResponseBuilder builder = Response.status(Status.BAD_REQUEST);
+            throw new WebApplicationException(builder.build());
+        }
+    }
+
+    /**
+     * Sends the argument <code>payload</code> to the Chrome Extension
+     * registered for <code>channelId</code>, refreshing its access token if
+     * needed.
+     * 
+     * @param channelId
+     *            the GCM ID of the recipient
+     * @param payload
+     *            the payload to be sent, as a JSON string
+     * @param deadline
+     *            the deadline for the request on whose behalf the payload is
+     *            delivered
+     * @return the outcome of the delivery
+     */
+    static DeliveryResult deliver(String channelId, String payload,
+            Deadline deadline) {
+        return deliver(User.fromChannelId(channelId), payload, deadline);
+    }
+
+    private static DeliveryResult deliver(User user, String payload,
+            Deadline deadline) {
+        if (user == null) {
+            return DeliveryResult.NO_USER;
+        }
+        // a message to an actual user, wohoo!
+        if (user.isTokenExpired()) {
+            switch (OAuthManager.refresh(user, deadline)) {
+            case REFRESHED:
+                break;
+            case REVOKED:
+                return DeliveryResult.REJECTED;
+            default:
+                return DeliveryResult.FAILED;
+            }
+        } else if (user.touch()) {
+            user.saveLater();
+        }
+        return sendToChrome(user, payload, deadline);
+    }
+
+    private static DeliveryResult sendToChrome(User user, String payload,
+            Deadline deadline) {
+        // token is valid, do the actual sending!
+        List<NameValuePair> parms = new ArrayList<NameValuePair>();
+        parms.add(new BasicNameValuePair("channelId", user.getChannelId()));
+        parms.add(new BasicNameValuePair("subchannelId", "0"));
+        parms.add(new BasicNameValuePair("payload", payload));
+        NameValuePair authHeader = new BasicNameValuePair("Authorization",
+                "Bearer " + user.getAccessToken());
+        Reply reply = NetworkingUtils.postForReply(CHROME_GCM_URL, parms,
+                MediaType.APPLICATION_JSON_TYPE, deadline, authHeader);
+        if (reply.getBody() != null) {
+            return DeliveryResult.DELIVERED;
+        }
+        return reply.isRejected() ? DeliveryResult.REJECTED
+                : DeliveryResult.FAILED;
+    }
+}
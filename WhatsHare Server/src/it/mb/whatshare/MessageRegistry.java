@@ -0,0 +1,107 @@
+/**
+ * MessageRegistry.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Keeps track of all the kinds of {@link Message} this server understands,
+ * and converts them from/to JSON using their {@link MessageCodec}.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class MessageRegistry {
+
+    /**
+     * Name of the JSON field that tells which kind of message was sent.
+     */
+    public static final String TYPE_FIELD = "type";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Map<String, MessageCodec<?>> CODECS = new HashMap<String, MessageCodec<?>>();
+
+    static {
+        register(PairingResponse.CODEC);
+        register(SharePayload.CODEC);
+        register(UnpairNotice.CODEC);
+    }
+
+    private MessageRegistry() {
+        // don't instantiate me!
+    }
+
+    private static void register(MessageCodec<?> codec) {
+        CODECS.put(codec.getType(), codec);
+    }
+
+    /**
+     * Returns the codec registered for the argument <code>type</code>.
+     * 
+     * @param type
+     *            the value of the {@link #TYPE_FIELD} discriminator
+     * @return the codec, or <code>null</code> if no message of that type is
+     *         known
+     */
+    public static MessageCodec<?> codecFor(String type) {
+        return type == null ? null : CODECS.get(type);
+    }
+
+    /**
+     * Parses the argument <code>json</code> string into a message.
+     * 
+     * @param json
+     *            the JSON object sent by the client
+     * @param defaultType
+     *            the type to be used when <code>json</code> has no
+     *            {@link #TYPE_FIELD} (e.g. for messages sent by clients that
+     *            predate the discriminator), can be <code>null</code>
+     * @return the decoded message, or <code>null</code> if <code>json</code>
+     *         is not a JSON object or its type is unknown
+     */
+    public static Message decode(String json, String defaultType) {
+        if (json == null) {
+            return null;
+        }
+        JsonNode tree;
+        try {
+            tree = MAPPER.readTree(json);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (tree == null || !tree.isObject()) {
+            return null;
+        }
+        String type = MessageCodec.text(tree, TYPE_FIELD);
+        MessageCodec<?> codec = codecFor(type == null ? defaultType : type);
+        if (codec == null) {
+            System.err.println("unknown message type: " + type);
+            return null;
+        }
+        return codec.decode(tree);
+    }
+
+    /**
+     * Creates the payload to be delivered to the Chrome Extension for the
+     * argument <code>message</code>.
+     * 
+     * @param message
+     *            a message whose type is registered
+     * @return the payload for GCM
+     * @throws JSONException
+     *             in case the payload can't be created
+     */
+    public static JSONObject toPayload(Message message) throws JSONException {
+        return codecFor(message.getType()).toPayload(message);
+    }
+}
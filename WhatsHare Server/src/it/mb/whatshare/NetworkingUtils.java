@@ -4,12 +4,22 @@
  */
 package it.mb.whatshare;
 
+import it.mb.whatshare.ProfilingEvent.Type;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.core.MediaType;
 
@@ -32,6 +42,8 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import com.google.appengine.api.ThreadManager;
+
 /**
  * A set of utility methods to send and mangle stuff to/from servers.
  * 
@@ -45,8 +57,67 @@ public class NetworkingUtils {
      */
     public static final int RETRY_COUNT = 3;
     private static final long RETRY_SLEEP_TIME = 1000L;
-    private static final boolean DEBUG = true;
-    private static final String DEBUG_HOST = "http://192.168.0.8/";
+    private static final long MIN_ATTEMPT_TIME = 200L;
+    private static final long HEDGE_DELAY = Long.getLong(
+            "whatshare.hedge.delay", 500L);
+    private static final int HEDGE_BUDGET_PERCENT = Integer.getInteger(
+            "whatshare.hedge.budget", 10);
+    private static final double MAX_HEDGE_TOKENS = Integer.getInteger(
+            "whatshare.hedge.burst", 10);
+
+    // guarded by NetworkingUtils.class
+    private static double hedgeTokens;
+
+    /**
+     * The outcome of a POST request: the server response, if any, and the
+     * status code of the last attempt made.
+     */
+    public static class Reply {
+        private final String body;
+        private final int status;
+
+        Reply(String body, int status) {
+            this.body = body;
+            this.status = status;
+        }
+
+        /**
+         * Returns the potentially empty server response.
+         * 
+         * @return the server response, <code>null</code> in case network
+         *         exceptions were thrown, the server replied with an error or
+         *         the deadline expired
+         */
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the HTTP status code of the last attempt made.
+         * 
+         * @return the status code, <code>0</code> if no reply was received
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns whether the request failed in a way that repeating it won't
+         * fix, that is the server rejected it with a 4xx status code other
+         * than <code>408 Request Timeout</code> and
+         * <code>429 Too Many Requests</code>.
+         * 
+         * @return <code>true</code> if sending the same request again is
+         *         pointless
+         */
+        public boolean isRejected() {
+            return body == null && isRejection(status);
+        }
+
+        public String toString() {
+            return String.format("%d: %s", status, body);
+        }
+    }
 
     private NetworkingUtils() {
         // don't instantiate me!
@@ -93,8 +164,8 @@ public class NetworkingUtils {
      * attempt fails, the error message is returned.
      * 
      * <p>
-     * When in debug mode, this method also routes the post to the configured
-     * {@link #DEBUG_HOST} for logging the request (to see what's going on).
+     * Failed attempts, and a sample of successful ones, are recorded by
+     * {@link TrafficCapture} (to see what's going on).
      * 
      * @param url
      *            the URL to post content to
@@ -113,10 +184,213 @@ public class NetworkingUtils {
      */
     public static String post(String url, List<NameValuePair> parms,
             MediaType contentType, NameValuePair... extraHeaders) {
+        return post(url, parms, contentType, Deadline.NONE, extraHeaders);
+    }
+
+    /**
+     * Makes a POST request like {@link #post(String, List, MediaType,
+     * NameValuePair...)} does, giving up as soon as it becomes clear that no
+     * reply can be received before the argument <code>deadline</code>.
+     * 
+     * <p>
+     * Timeouts for each attempt are derived from latencies observed for the
+     * host in <code>url</code> (see {@link HostLatency}) and capped to the
+     * time left before <code>deadline</code>; no attempt is made if the time
+     * left is less than what the host usually takes to reply.
+     * 
+     * @param url
+     *            the URL to post content to
+     * @param parms
+     *            the content of the POST message, which will be formatted
+     *            according to the argument <code>contentType</code>
+     * @param contentType
+     *            the HTTP content type of the request, which determines how
+     *            <code>parms</code> are encoded (currently supported:
+     *            {@link MediaType#APPLICATION_FORM_URLENCODED_TYPE} and
+     *            {@link MediaType#APPLICATION_JSON_TYPE})
+     * @param deadline
+     *            the deadline for the request on whose behalf this post is
+     *            made
+     * @param extraHeaders
+     *            a list of extra headers you may want to attach to the request
+     * @return the potentially empty server response, which is <code>null</code>
+     *         in case network exceptions were thrown during the process or
+     *         the deadline expired
+     */
+    public static String post(String url, List<NameValuePair> parms,
+            MediaType contentType, Deadline deadline,
+            NameValuePair... extraHeaders) {
+        return postForReply(url, parms, contentType, deadline, extraHeaders)
+                .getBody();
+    }
+
+    /**
+     * Makes a POST request like {@link #post(String, List, MediaType,
+     * Deadline, NameValuePair...)} does, returning the status code of the last
+     * attempt together with the server response so that callers can tell
+     * requests worth repeating from rejected ones.
+     * 
+     * <p>
+     * Attempts stop as soon as the server rejects the request (see
+     * {@link Reply#isRejected()}).
+     * 
+     * @param url
+     *            the URL to post content to
+     * @param parms
+     *            the content of the POST message, which will be formatted
+     *            according to the argument <code>contentType</code>
+     * @param contentType
+     *            the HTTP content type of the request, which determines how
+     *            <code>parms</code> are encoded (currently supported:
+     *            {@link MediaType#APPLICATION_FORM_URLENCODED_TYPE} and
+     *            {@link MediaType#APPLICATION_JSON_TYPE})
+     * @param deadline
+     *            the deadline for the request on whose behalf this post is
+     *            made
+     * @param extraHeaders
+     *            a list of extra headers you may want to attach to the request
+     * @return the outcome of the request, never <code>null</code>
+     */
+    public static Reply postForReply(String url, List<NameValuePair> parms,
+            MediaType contentType, Deadline deadline,
+            NameValuePair... extraHeaders) {
+        HttpPost post = createPost(url, parms, contentType, extraHeaders);
+        return post == null ? new Reply(null, 0) : execute(post, deadline);
+    }
+
+    /**
+     * Makes a POST request like {@link #post(String, List, MediaType,
+     * NameValuePair...)} does, but if no reply comes back within the hedging
+     * delay a second, identical request is sent and whichever reply arrives
+     * first is returned.
+     * 
+     * <p>
+     * The hedging delay is the 95th percentile of latencies observed for the
+     * host in <code>url</code> (see {@link HostLatency}), or the
+     * <code>whatshare.hedge.delay</code> system property (in milliseconds)
+     * until enough requests were made to that host. Each hedgeable request
+     * earns <code>whatshare.hedge.budget</code> percent of a hedge, and up to
+     * <code>whatshare.hedge.burst</code> hedges can be saved up, so that
+     * about that percentage of recent requests is hedged and a slow host
+     * doesn't get twice the load.
+     * 
+     * <p>
+     * Only use this method for requests that are safe to repeat.
+     * 
+     * <p>
+     * Attempts are bound to the argument <code>deadline</code> as in
+     * {@link #post(String, List, MediaType, Deadline, NameValuePair...)}.
+     * 
+     * @param url
+     *            the URL to post content to
+     * @param parms
+     *            the content of the POST message, which will be formatted
+     *            according to the argument <code>contentType</code>
+     * @param contentType
+     *            the HTTP content type of the request, which determines how
+     *            <code>parms</code> are encoded (currently supported:
+     *            {@link MediaType#APPLICATION_FORM_URLENCODED_TYPE} and
+     *            {@link MediaType#APPLICATION_JSON_TYPE})
+     * @param deadline
+     *            the deadline for the request on whose behalf this post is
+     *            made
+     * @param extraHeaders
+     *            a list of extra headers you may want to attach to the request
+     * @return the outcome of the request that replied first, or of the last
+     *         one to fail if neither got a response; never <code>null</code>
+     */
+    public static Reply hedgedPost(String url, List<NameValuePair> parms,
+            MediaType contentType, final Deadline deadline,
+            NameValuePair... extraHeaders) {
+        final HttpPost first = createPost(url, parms, contentType,
+                extraHeaders);
+        final HttpPost second = createPost(url, parms, contentType,
+                extraHeaders);
+        if (first == null || second == null) {
+            return new Reply(null, 0);
+        }
+        earnHedge();
+        long delay = HostLatency.of(url).getP95();
+        if (delay < 0) {
+            delay = HEDGE_DELAY;
+        }
+        delay = Math.min(delay, deadline.remaining());
+        ExecutorService executor = Executors.newFixedThreadPool(2,
+                ThreadManager.currentRequestThreadFactory());
+        CompletionService<Reply> completion = new ExecutorCompletionService<Reply>(
+                executor);
+        Reply failed = new Reply(null, 0);
+        try {
+            completion.submit(new Callable<Reply>() {
+                @Override
+                public Reply call() throws Exception {
+                    return execute(first, deadline);
+                }
+            });
+            int pending = 1;
+            Future<Reply> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null && canHedge()) {
+                System.out.println("hedging request to " + url + " after "
+                        + delay + "ms");
+                completion.submit(new Callable<Reply>() {
+                    @Override
+                    public Reply call() throws Exception {
+                        return execute(second, deadline);
+                    }
+                });
+                pending++;
+            }
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                Reply reply = getQuietly(done);
+                if (reply != null) {
+                    if (reply.getBody() != null) {
+                        return reply;
+                    }
+                    failed = reply;
+                }
+                done = null;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            // the losing request is of no use to anybody
+            first.abort();
+            second.abort();
+            executor.shutdownNow();
+        }
+        return failed;
+    }
+
+    private static synchronized void earnHedge() {
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens
+                + HEDGE_BUDGET_PERCENT / 100.0);
+    }
+
+    private static synchronized boolean canHedge() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens--;
+        return true;
+    }
+
+    private static Reply getQuietly(Future<Reply> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static HttpPost createPost(String url, List<NameValuePair> parms,
+            MediaType contentType, NameValuePair... extraHeaders) {
         HttpPost post = new HttpPost(url);
-        int tries = 1;
-        String response = null;
-        HttpResponse serverResponse = null;
         try {
             if (contentType
                     .isCompatible(MediaType.APPLICATION_FORM_URLENCODED_TYPE)) {
@@ -129,69 +403,123 @@ public class NetworkingUtils {
                     return null;
                 }
             }
-            post.setHeader("Content-Type", contentType.toString());
-            for (NameValuePair header : extraHeaders) {
-                post.setHeader(header.getName(), header.getValue());
-            }
-            long timeout = RETRY_SLEEP_TIME * tries;
-            HttpParams params = new BasicHttpParams();
-            DefaultHttpClient client = updateTimeout(params, timeout);
-            int statusCode = Integer.MAX_VALUE;
-            while (isError(statusCode) && tries < RETRY_COUNT) {
-                try {
-                    System.out.println("attempt " + tries);
-                    serverResponse = client.execute(post);
-                    statusCode = serverResponse.getStatusLine().getStatusCode();
-                    if (isError(statusCode)) {
-                        try {
-                            System.err.println("Failed request, response is: "
-                                    + EntityUtils.toString(serverResponse
-                                            .getEntity()));
-                        } catch (ParseException e1) {
-                            e1.printStackTrace();
-                        } catch (IOException e1) {
-                            e1.printStackTrace();
-                        }
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+        post.setHeader("Content-Type", contentType.toString());
+        for (NameValuePair header : extraHeaders) {
+            post.setHeader(header.getName(), header.getValue());
+        }
+        return post;
+    }
+
+    private static Reply execute(HttpPost post, Deadline deadline) {
+        String url = post.getURI().toString();
+        HostLatency latency = HostLatency.of(url);
+        int tries = 1;
+        String response = null;
+        HttpResponse serverResponse = null;
+        HttpParams params = new BasicHttpParams();
+        long timeout = attemptTimeout(tries, latency, deadline);
+        boolean attempted = false;
+        boolean capture = TrafficCapture.sample();
+        int statusCode = Integer.MAX_VALUE;
+        int lastStatus = 0;
+        while (isError(statusCode) && !isRejection(lastStatus)
+                && tries < RETRY_COUNT && timeout > 0) {
+            long connectTimeout = Math.max(1, timeout / 4);
+            DefaultHttpClient client = updateTimeout(params, connectTimeout,
+                    timeout - connectTimeout);
+            attempted = true;
+            ProfilingEvent event = ProfilingEvent.begin(Type.OUTBOUND_POST)
+                    .attempt(tries).detail(post.getURI().getHost());
+            long start = System.currentTimeMillis();
+            int attemptStatus = 0;
+            String body = null;
+            try {
+                System.out.println("attempt " + tries);
+                serverResponse = client.execute(post);
+                latency.record(System.currentTimeMillis() - start);
+                statusCode = serverResponse.getStatusLine().getStatusCode();
+                attemptStatus = statusCode;
+                if (isError(statusCode)) {
+                    try {
+                        body = EntityUtils.toString(serverResponse
+                                .getEntity());
+                        System.err.println("Failed request, response is: "
+                                + body);
+                    } catch (ParseException e1) {
+                        e1.printStackTrace();
+                    } catch (IOException e1) {
+                        e1.printStackTrace();
                     }
-                    response = new BasicResponseHandler()
-                            .handleResponse(serverResponse);
-                } catch (IOException e) {
+                    TrafficCapture.record(post, tries, attemptStatus, body,
+                            null, System.currentTimeMillis() - start);
+                }
+                response = new BasicResponseHandler()
+                        .handleResponse(serverResponse);
+                if (capture) {
+                    TrafficCapture.record(post, tries, attemptStatus,
+                            response, null, System.currentTimeMillis()
+                                    - start);
+                }
+            } catch (IOException e) {
+                if (post.isAborted()) {
+                    // a hedged request won, stop here
+                    event.detail(post.getURI().getHost() + "(aborted)")
+                            .commit();
+                    return new Reply(null, attemptStatus);
+                }
+                if (e instanceof InterruptedIOException) {
+                    // the host is at least this slow, let estimates know
+                    latency.record(System.currentTimeMillis() - start);
+                }
+                if (!isError(attemptStatus)) {
+                    // error replies were already recorded above
+                    TrafficCapture.record(post, tries, attemptStatus, null,
+                            e.toString(), System.currentTimeMillis() - start);
+                }
+                // life is too short for exponential backoff
+                long pause = Math.min(connectTimeout, deadline.remaining());
+                if (!isRejection(attemptStatus) && tries + 1 < RETRY_COUNT
+                        && hasTimeFor(deadline.remaining() - pause, latency)) {
                     // maybe just try again...
                     try {
-                        // life is too short for exponential backoff
-                        Thread.sleep(timeout);
+                        Thread.sleep(pause);
                     } catch (InterruptedException e1) {
                         e1.printStackTrace();
                     }
                 }
-                tries++;
-                timeout = RETRY_SLEEP_TIME * tries;
-                client = updateTimeout(params, timeout);
             }
-            if (response != null) {
-                System.out.println("response: " + response);
-            } else if (DEBUG && isError(statusCode)) {
-                post.setURI(URI.create(DEBUG_HOST
-                        + url.substring(url.indexOf("//") + 2)));
-                try {
-                    client.execute(post, new BasicResponseHandler());
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
-            } else {
-                // even if response is null, it's not an error
-                response = "";
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            lastStatus = attemptStatus;
+            event.status(attemptStatus).commit();
+            tries++;
+            timeout = attemptTimeout(tries, latency, deadline);
+        }
+        if (!attempted) {
+            System.err.println("no time left for " + url + ", " + deadline);
+            return new Reply(null, 0);
         }
-        return response;
+        if (response != null) {
+            System.out.println("response: " + response);
+        } else if (!isError(statusCode)) {
+            // even if response is null, it's not an error
+            response = "";
+        }
+        return new Reply(response, lastStatus);
     }
 
     private static boolean isError(int statusCode) {
         return statusCode > 399;
     }
 
+    private static boolean isRejection(int statusCode) {
+        // timeouts and throttling are worth another try
+        return statusCode > 399 && statusCode < 500 && statusCode != 408
+                && statusCode != 429;
+    }
+
     private static String toJson(List<NameValuePair> parms)
             throws JSONException {
         JSONObject json = new JSONObject();
@@ -201,10 +529,41 @@ public class NetworkingUtils {
         return json.toString();
     }
 
+    /**
+     * Returns the overall time for the argument attempt (split between the
+     * connection and the socket timeouts, so that their sum never goes past
+     * <code>deadline</code>), or <code>-1</code> if the attempt shouldn't be
+     * made because there's not enough time left for the host to reply before
+     * <code>deadline</code>.
+     */
+    private static long attemptTimeout(int tries, HostLatency latency,
+            Deadline deadline) {
+        long remaining = deadline.remaining();
+        if (!hasTimeFor(remaining, latency)) {
+            return -1;
+        }
+        long socketTimeout = RETRY_SLEEP_TIME * tries * 3;
+        long p95 = latency.getP95();
+        if (p95 >= 0) {
+            // slower than usual is fine, way slower means something's wrong
+            socketTimeout = Math.max(MIN_ATTEMPT_TIME * 3, p95 * 2 * tries);
+        }
+        // connecting gets a third of what's left for the socket
+        return Math.max(2, Math.min(socketTimeout * 4 / 3, remaining));
+    }
+
+    /**
+     * Returns whether <code>remaining</code> milliseconds are enough for the
+     * host whose latency is <code>latency</code> to reply.
+     */
+    private static boolean hasTimeFor(long remaining, HostLatency latency) {
+        return remaining >= Math.max(MIN_ATTEMPT_TIME, latency.getMean());
+    }
+
     private static DefaultHttpClient updateTimeout(HttpParams params,
-            long timeout) {
-        HttpConnectionParams.setConnectionTimeout(params, (int) timeout);
-        HttpConnectionParams.setSoTimeout(params, (int) timeout * 3);
+            long connectTimeout, long socketTimeout) {
+        HttpConnectionParams.setConnectionTimeout(params, (int) connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, (int) socketTimeout);
         DefaultHttpClient client = new DefaultHttpClient(params);
         client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0,
                 false));
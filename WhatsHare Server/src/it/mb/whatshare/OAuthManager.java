@@ -4,8 +4,9 @@
  */
 package it.mb.whatshare;
 
-import static it.mb.whatshare.ObjectifyCustomService.ofy;
 import static java.lang.String.format;
+import it.mb.whatshare.NetworkingUtils.Reply;
+import it.mb.whatshare.ProfilingEvent.Type;
 
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -16,13 +17,16 @@ import java.util.Map;
 
 import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -72,6 +76,10 @@ public class OAuthManager {
 
     @Context
     private ServletContext context;
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private HttpHeaders headers;
 
     /**
      * Called by Google's OAuth2 server after users of the Chrome extension
@@ -102,21 +110,34 @@ public class OAuthManager {
         }
         System.out.println("locale is " + locale + ", channelId is "
                 + channelId + ", authCode is " + authCode);
+        ClusterRouter.routeToOwner(channelId, HttpMethod.GET, uriInfo,
+                headers, null);
+        ProfilingEvent event = ProfilingEvent.begin(Type.OAUTH_REPLY)
+                .channel(channelId);
         boolean success = false;
         if (channelId != null && authCode != null) {
+            Deadline deadline = Deadline.forRequest();
             User user = User.fromChannelId(channelId);
             if (user == null) {
                 // this user needs a new token
-                if (User.fromAuthCode(authCode, channelId) != null) {
+                if (User.fromAuthCode(authCode, channelId, deadline) != null) {
                     success = true;
                 } // else something is wrong with OAuth's reply
             } else if (user.isTokenExpired()) {
-                success = refreshToken(user);
+                success = refreshToken(user, deadline);
             } else {
                 // token is still valid, no need to update it
                 success = true;
+                if (user.touch()) {
+                    user.saveLater();
+                }
             }
         }
+        event.detail(success ? "success" : "fail").commit();
+        if (success) {
+            // the extension may be long-polling for this
+            ChannelWaiters.wakeUp(channelId);
+        }
         try {
             // redirect, so 'error' is within the URL in case of errors
             // (see the chrome extension's showQR.js for details)
@@ -189,19 +210,44 @@ public class OAuthManager {
      * 
      * @param authCode
      *            the authorization code used to get tokens
+     * @param deadline
+     *            the deadline for the request on whose behalf tokens are
+     *            retrieved
      * @return a map of <code>&lt;key, value&gt;</code> pairs returned by
      *         Google's OAuth2 servers, or <code>null</code> if the request
      *         couldn't be performed or finished in error
      */
-    public static Map<String, String> getAccessToken(String authCode) {
+    public static Map<String, String> getAccessToken(String authCode,
+            Deadline deadline) {
         List<NameValuePair> parms = new ArrayList<NameValuePair>(
                 REQUEST_TOKENS_ATTRIBUTES);
         parms.add(new BasicNameValuePair("code", authCode));
         String response = NetworkingUtils.post(OAUTH_URL, parms,
-                MediaType.APPLICATION_FORM_URLENCODED_TYPE);
+                MediaType.APPLICATION_FORM_URLENCODED_TYPE, deadline);
         return NetworkingUtils.toStringMap(response);
     }
 
+    /**
+     * Outcome of an attempt to refresh an access token.
+     */
+    enum RefreshResult {
+        /**
+         * A new access token was retrieved.
+         */
+        REFRESHED,
+        /**
+         * Google's OAuth2 servers couldn't be reached or didn't reply in
+         * time: refreshing may work later.
+         */
+        FAILED,
+        /**
+         * Google's OAuth2 servers rejected the refresh token (e.g. because the
+         * user revoked access): refreshing won't work until the user grants
+         * access again.
+         */
+        REVOKED
+    }
+
     /**
      * Refreshes the access token for <code>user</code>, using the refresh token
      * returned by {@link User#getRefreshToken()}.
@@ -212,20 +258,59 @@ public class OAuthManager {
      * 
      * @param user
      *            the user whose access token must be refreshed
+     * @param deadline
+     *            the deadline for the request on whose behalf the token is
+     *            refreshed
      * @return <code>true</code> if the access token was successfully refreshed
      */
-    public static boolean refreshToken(User user) {
+    public static boolean refreshToken(User user, Deadline deadline) {
+        return refresh(user, deadline) == RefreshResult.REFRESHED;
+    }
+
+    /**
+     * Refreshes the access token for <code>user</code> like
+     * {@link #refreshToken(User, Deadline)} does, telling failures that are
+     * worth retrying from rejected refresh tokens.
+     * 
+     * @param user
+     *            the user whose access token must be refreshed
+     * @param deadline
+     *            the deadline for the request on whose behalf the token is
+     *            refreshed
+     * @return the outcome of the refresh
+     */
+    static RefreshResult refresh(User user, Deadline deadline) {
         System.out.println("refreshing token...");
+        ProfilingEvent event = ProfilingEvent.begin(Type.TOKEN_REFRESH)
+                .channel(user.getChannelId());
         List<NameValuePair> parms = new ArrayList<NameValuePair>(
                 REFRESH_TOKENS_ATTRIBUTES);
         parms.add(new BasicNameValuePair("refresh_token", user
                 .getRefreshToken()));
-        String response = NetworkingUtils.post(OAUTH_URL, parms,
-                MediaType.APPLICATION_FORM_URLENCODED_TYPE);
-        Map<String, String> map = NetworkingUtils.toStringMap(response);
-        boolean success = user.setOauthParms(map, null);
-        ofy().save().entity(user).now();
-        return success;
+        // refreshing is idempotent, so slow replies can be hedged
+        Reply reply = NetworkingUtils.hedgedPost(OAUTH_URL, parms,
+                MediaType.APPLICATION_FORM_URLENCODED_TYPE, deadline);
+        Map<String, String> map = NetworkingUtils.toStringMap(reply.getBody());
+        // only a new token counts: setOauthParms() is happy with the old one
+        String accessToken = map == null ? null : map.get("access_token");
+        boolean success = accessToken != null && !accessToken.isEmpty()
+                && user.setOauthParms(map, null);
+        boolean revoked = !success && reply.isRejected();
+        if (success) {
+            user.refreshed();
+        } else if (revoked) {
+            // an outage isn't the user's fault, only count rejections
+            user.refreshRejected();
+        }
+        user.touch();
+        user.save();
+        event.status(reply.getStatus())
+                .detail(success ? "success" : "fail").commit();
+        if (success) {
+            ChannelWaiters.wakeUp(user.getChannelId());
+            return RefreshResult.REFRESHED;
+        }
+        return revoked ? RefreshResult.REVOKED : RefreshResult.FAILED;
     }
 
 }
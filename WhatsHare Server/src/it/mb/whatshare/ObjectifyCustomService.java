@@ -19,6 +19,8 @@ public class ObjectifyCustomService {
 
     static {
         factory().register(User.class);
+        factory().register(PendingDelivery.class);
+        factory().register(SweepState.class);
     }
 
     /**
@@ -0,0 +1,265 @@
+/**
+ * OutboundQueue.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import static it.mb.whatshare.ObjectifyCustomService.ofy;
+import it.mb.whatshare.MessageDispatcher.DeliveryResult;
+import it.mb.whatshare.ProfilingEvent.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Stores payloads that couldn't be delivered to Chrome Extensions because of
+ * transient failures, and delivers them again later.
+ * 
+ * <p>
+ * Payloads are persisted as {@link PendingDelivery} entities, so they survive
+ * instance restarts. The queue is drained in order of arrival by cron (see
+ * <code>cron.xml</code>): draining stops at the first transient failure, so
+ * that nothing is hammered while GCM or Google's OAuth2 servers are down,
+ * while payloads that can't ever be delivered and those older than
+ * {@link #TTL} are dropped.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Path("/queue")
+public class OutboundQueue {
+
+    /**
+     * How long payloads are kept in the queue before being dropped, in
+     * milliseconds.
+     */
+    public static final long TTL = Long.getLong("whatshare.queue.ttl",
+            30 * 60 * 1000L);
+    private static final int BATCH_SIZE = 50;
+    private static final int MAX_COUNTED_DEPTH = 1000;
+    private static final long DRAIN_TIME_LIMIT = 30 * 1000L;
+
+    // stats for this instance, guarded by OutboundQueue.class
+    private static long totalEnqueued;
+    private static long totalDelivered;
+    private static long totalExpired;
+    private static long lastDrainStart;
+    private static long lastDrainDuration;
+    private static int lastDrainDelivered;
+
+    /**
+     * Stores <code>payload</code> for later delivery to the Chrome Extension
+     * registered for <code>channelId</code>.
+     * 
+     * <p>
+     * The entity is saved asynchronously, so the caller's request isn't held
+     * up waiting for the datastore.
+     * 
+     * @param channelId
+     *            the GCM ID of the recipient
+     * @param payload
+     *            the payload to be delivered, as a JSON string
+     */
+    public static void enqueue(String channelId, String payload) {
+        System.out.println("queueing delivery to " + channelId);
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_SAVE)
+                .channel(channelId).detail("PendingDelivery(async)");
+        ofy().save().entity(new PendingDelivery(channelId, payload, TTL));
+        event.commit();
+        synchronized (OutboundQueue.class) {
+            totalEnqueued++;
+        }
+    }
+
+    /**
+     * Attempts to deliver the payloads in the queue, oldest first, until the
+     * first failure that's worth retrying or until the queue is empty.
+     * 
+     * <p>
+     * Payloads whose recipient is gone, revoked access or was rejected by GCM
+     * are dropped without stopping.
+     * 
+     * <p>
+     * Called by cron.
+     * 
+     * @return a summary of what happened
+     */
+    @GET
+    @Path("drain")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String drain() {
+        long start = System.currentTimeMillis();
+        int expired = compact(start);
+        int delivered = 0, dropped = 0;
+        boolean healthy = true;
+        List<PendingDelivery> done = new ArrayList<PendingDelivery>();
+        List<PendingDelivery> batch = new ArrayList<PendingDelivery>();
+        Cursor cursor = null;
+        do {
+            cursor = loadBatch(cursor, batch);
+            for (PendingDelivery pending : batch) {
+                long elapsed = System.currentTimeMillis() - start;
+                if (!healthy || elapsed >= DRAIN_TIME_LIMIT) {
+                    break;
+                }
+                if (pending.isExpired(System.currentTimeMillis())) {
+                    expired++;
+                    done.add(pending);
+                    continue;
+                }
+                DeliveryResult result = MessageDispatcher.deliver(
+                        pending.getChannelId(), pending.getPayload(),
+                        Deadline.forRequest());
+                if (result == DeliveryResult.FAILED) {
+                    // wait for the next run before trying again
+                    healthy = false;
+                    pending.failedAttempt();
+                    ProfilingEvent event = ProfilingEvent
+                            .begin(Type.DATASTORE_SAVE)
+                            .channel(pending.getChannelId())
+                            .detail("PendingDelivery(async)");
+                    ofy().save().entity(pending);
+                    event.commit();
+                } else {
+                    if (result == DeliveryResult.DELIVERED) {
+                        delivered++;
+                    } else {
+                        // user is gone or won't take it, don't try again
+                        dropped++;
+                    }
+                    done.add(pending);
+                }
+            }
+            delete(done);
+            done.clear();
+        } while (healthy && batch.size() == BATCH_SIZE
+                && System.currentTimeMillis() - start < DRAIN_TIME_LIMIT);
+        long duration = System.currentTimeMillis() - start;
+        synchronized (OutboundQueue.class) {
+            totalDelivered += delivered;
+            totalExpired += expired;
+            lastDrainStart = start;
+            lastDrainDuration = duration;
+            lastDrainDelivered = delivered;
+        }
+        String summary = String.format(
+                "delivered %d, dropped %d, expired %d in %dms%s", delivered,
+                dropped, expired, duration, healthy ? ""
+                        : " (stopped at first failure)");
+        System.out.println("queue drained: " + summary);
+        return summary;
+    }
+
+    /**
+     * Replaces the contents of <code>batch</code> with the next
+     * {@link #BATCH_SIZE} payloads in order of arrival, starting at
+     * <code>cursor</code>, and returns where the following batch starts.
+     */
+    private static Cursor loadBatch(Cursor cursor,
+            List<PendingDelivery> batch) {
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                .detail("PendingDelivery(query)");
+        Query<PendingDelivery> query = ofy().load()
+                .type(PendingDelivery.class).order("enqueuedAt")
+                .limit(BATCH_SIZE);
+        if (cursor != null) {
+            query = query.startAt(cursor);
+        }
+        batch.clear();
+        QueryResultIterator<PendingDelivery> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        event.commit();
+        return iterator.getCursor();
+    }
+
+    private static void delete(List<PendingDelivery> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_DELETE)
+                .detail("PendingDelivery");
+        ofy().delete().entities(entries).now();
+        event.commit();
+    }
+
+    /**
+     * Deletes all expired payloads still in the queue.
+     */
+    private static int compact(long now) {
+        int expired = 0;
+        List<Key<PendingDelivery>> keys;
+        do {
+            ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                    .detail("PendingDelivery(expired)");
+            keys = ofy().load().type(PendingDelivery.class)
+                    .filter("expiresAt <=", now).limit(BATCH_SIZE).keys()
+                    .list();
+            event.commit();
+            if (!keys.isEmpty()) {
+                event = ProfilingEvent.begin(Type.DATASTORE_DELETE).detail(
+                        "PendingDelivery");
+                ofy().delete().keys(keys).now();
+                event.commit();
+            }
+            expired += keys.size();
+        } while (keys.size() == BATCH_SIZE);
+        return expired;
+    }
+
+    /**
+     * Returns the current state of the queue.
+     * 
+     * <p>
+     * The queue depth is only counted up to {@value #MAX_COUNTED_DEPTH}
+     * entries; drain statistics refer to the instance serving the request.
+     * 
+     * @return a JSON object with the queue's statistics
+     * @throws JSONException
+     *             in case the reply can't be created
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String stats() throws JSONException {
+        long now = System.currentTimeMillis();
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                .detail("PendingDelivery(count)");
+        int depth = ofy().load().type(PendingDelivery.class)
+                .limit(MAX_COUNTED_DEPTH).count();
+        event.commit();
+        event = ProfilingEvent.begin(Type.DATASTORE_LOAD).detail(
+                "PendingDelivery(oldest)");
+        PendingDelivery oldest = ofy().load().type(PendingDelivery.class)
+                .order("enqueuedAt").first().now();
+        event.commit();
+        JSONObject json = new JSONObject();
+        json.put("depth", depth);
+        json.put("oldestAgeMillis",
+                oldest == null ? 0 : now - oldest.getEnqueuedAt());
+        synchronized (OutboundQueue.class) {
+            json.put("totalEnqueued", totalEnqueued);
+            json.put("totalDelivered", totalDelivered);
+            json.put("totalExpired", totalExpired);
+            json.put("lastDrainStart", lastDrainStart);
+            json.put("lastDrainMillis", lastDrainDuration);
+            json.put("lastDrainRatePerSecond",
+                    lastDrainDuration == 0 ? 0 : lastDrainDelivered * 1000.0
+                            / lastDrainDuration);
+        }
+        return json.toString();
+    }
+}
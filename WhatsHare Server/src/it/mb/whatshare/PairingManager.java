@@ -4,27 +4,25 @@
  */
 package it.mb.whatshare;
 
-import static it.mb.whatshare.ObjectifyCustomService.ofy;
-
-import java.util.ArrayList;
-import java.util.List;
+import it.mb.whatshare.ChannelWaiters.Waiter;
+import it.mb.whatshare.PairingSessions.Session;
+import it.mb.whatshare.ProfilingEvent.Type;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
-
-import org.apache.http.NameValuePair;
-import org.apache.http.message.BasicNameValuePair;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import javax.ws.rs.core.UriInfo;
 
 /**
  * Manages pairing between the Chrome Extension and Android devices.
@@ -35,33 +33,104 @@ import org.codehaus.jettison.json.JSONObject;
 @Path("/pairing")
 public class PairingManager {
 
-    private static final String CHROME_GCM_URL = "https://www.googleapis.com/gcm_for_chrome/v1/messages";
+    private static final long WAIT_SLICE = 5 * 1000L;
 
-    private void checkValid(PairingResponse msg) {
-        if (msg == null || !msg.isValid()) {
-            ResponseBuilder builder = Response.status(Status.BAD_REQUEST);
-            throw new WebApplicationException(builder.build());
-        }
-    }
+    @Context
+    private UriInfo uriInfo;
+    @Context
+    private HttpHeaders headers;
 
     /**
      * Handles {@link PairingResponse}'s coming from Android devices.
      * 
-     * @param msg
+     * <p>
+     * Messages sent here are assumed to be pairing responses when they don't
+     * specify their {@link MessageRegistry#TYPE_FIELD}.
+     * 
+     * @param json
      *            the response sent by the Android device that's about to be
      *            paired
      * @return a successful response in case the caller device sent a valid
-     *         message for an existing pairing request, a
-     *         {@link Status#UNAUTHORIZED} message if otherwise
+     *         message for a pairing in progress (see
+     *         {@link #startPairing(String)}; without a cluster, for any
+     *         registered user), a {@link Status#UNAUTHORIZED} message if
+     *         otherwise
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response replyToRequest(PairingResponse msg) {
+    public Response replyToRequest(String json) {
+        Deadline deadline = Deadline.forRequest();
+        ProfilingEvent event = ProfilingEvent.begin(Type.PAIRING_REPLY);
+        int status = 0;
+        try {
+            Response response = reply(json, deadline, event);
+            status = response.getStatus();
+            return response;
+        } catch (WebApplicationException e) {
+            status = e.getResponse().getStatus();
+            throw e;
+        } finally {
+            event.status(status).commit();
+        }
+    }
+
+    private Response reply(String json, Deadline deadline,
+            ProfilingEvent event) {
+        Message msg = MessageRegistry.decode(json, PairingResponse.TYPE);
         System.out.println("reply to pairing request: " + msg);
-        checkValid(msg);
-        if (!sendToChrome(msg)) {
+        if (!(msg instanceof PairingResponse) || !msg.isValid()) {
+            throw new WebApplicationException(Response.status(
+                    Status.BAD_REQUEST).build());
+        }
+        event.channel(msg.getRecipientId());
+        ClusterRouter.routeToOwner(msg.getRecipientId(), HttpMethod.POST,
+                uriInfo, headers, json);
+        Session session = PairingSessions.get(msg.getRecipientId());
+        if (session == null && ClusterRing.isClustered()) {
+            // the owner would know, nobody is waiting for this reply
+            System.out.println("no pairing in progress for "
+                    + msg.getRecipientId());
             return Response.status(Status.UNAUTHORIZED).build();
         }
+        // sessions may be on another instance if not clustered, look it up
+        Response response = MessageDispatcher.dispatch(msg,
+                session == null ? null : session.getUser(), deadline);
+        if (response.getStatus() != Status.UNAUTHORIZED.getStatusCode()) {
+            // delivered or queued, either way this pairing is done
+            PairingSessions.remove(msg.getRecipientId());
+        }
+        return response;
+    }
+
+    /**
+     * Called by the Chrome Extension when it shows the QR code to be scanned
+     * by Android devices, to register a pairing session for its channel.
+     * 
+     * <p>
+     * The {@link User} for the channel is loaded (and its access token
+     * refreshed, if needed) right away, so that the pairing response can be
+     * delivered without further ado.
+     * 
+     * @param channelId
+     *            the channel ID (in GCM) of the Chrome Extension
+     * @return a successful response if the pairing session was registered, a
+     *         {@link Status#UNAUTHORIZED} message if there's no registered
+     *         user for <code>channelId</code> or a valid access token can't be
+     *         retrieved
+     */
+    @POST
+    @Path("{channelId}")
+    public Response startPairing(@PathParam("channelId") String channelId) {
+        Deadline deadline = Deadline.forRequest();
+        ClusterRouter.routeToOwner(channelId, HttpMethod.POST, uriInfo,
+                headers, null);
+        User user = User.fromChannelId(channelId);
+        if (user == null
+                || (user.isTokenExpired() && !OAuthManager.refreshToken(user,
+                        deadline))) {
+            return Response.status(Status.UNAUTHORIZED).build();
+        }
+        PairingSessions.register(user);
         return Response.status(Status.OK).build();
     }
 
@@ -73,8 +142,22 @@ public class PairingManager {
      * If the access token expired, the refresh token is used to get a new one;
      * if the procedure fails, this method gives up and informs the requestor.
      * 
+     * <p>
+     * If <tt>wait</tt> is positive and there's no valid access token yet, the
+     * request is held until the user for <tt>channelId</tt> is registered or
+     * gets a new access token (see {@link OAuthManager}), or until
+     * <tt>wait</tt> seconds go by, whichever comes first. This way, the Chrome
+     * Extension can make a single request while waiting for users to complete
+     * authentication, instead of polling. When not running in a cluster (see
+     * {@link ClusterRing}), changes made by other instances can't wake the
+     * request up, so the datastore is also checked every few seconds.
+     * 
      * @param channelId
      *            the channel ID (in GCM) to be searched
+     * @param wait
+     *            how long to wait for a valid access token, in seconds (capped
+     *            to {@link ChannelWaiters#MAX_WAIT}), <code>0</code> to reply
+     *            right away
      * @return the String <code>"0"</code> if there's no registered user for the
      *         argument <code>channelId</code>, or if a valid access token can't
      *         be retrieved, <code>"1"</code> otherwise
@@ -82,48 +165,60 @@ public class PairingManager {
     @GET
     @Path("{channelId}")
     @Produces(MediaType.TEXT_PLAIN)
-    public String isOAuthValid(@PathParam("channelId") String channelId) {
-        String result = "1";
-        User user = User.fromChannelId(channelId);
-        if (user.isTokenExpired()) {
-            if (!OAuthManager.refreshToken(user)) {
-                result = "0";
+    public String isOAuthValid(@PathParam("channelId") String channelId,
+            @QueryParam("wait") long wait) {
+        long started = System.currentTimeMillis();
+        long waitMillis = Math.min(wait * 1000, ChannelWaiters.MAX_WAIT);
+        ClusterRouter.routeToOwner(channelId, HttpMethod.GET, uriInfo,
+                headers, null, Math.max(0, waitMillis));
+        if (waitMillis <= 0) {
+            return checkOAuth(channelId, Deadline.forRequest(started));
+        }
+        // register first, or we could miss a change made while checking
+        Waiter waiter = ChannelWaiters.register(channelId);
+        try {
+            String result = checkOAuth(channelId, Deadline.forRequest(started));
+            if ("0".equals(result)) {
+                // without a cluster, changes are mostly made by other
+                // instances, which can't wake us up: look every now and then
+                long slice = ClusterRing.isClustered() ? waitMillis
+                        : WAIT_SLICE;
+                long waitUntil = started + waitMillis;
+                boolean changed;
+                do {
+                    // the first check took some of the time we could wait for
+                    changed = waiter.await(Math.min(slice, waitUntil
+                            - System.currentTimeMillis()));
+                    // check anyway, we may have missed a wakeup or its refresh
+                    result = checkOAuth(channelId,
+                            Deadline.forRequest(started));
+                } while (!changed && "0".equals(result)
+                        && System.currentTimeMillis() < waitUntil);
             }
-        } // else token is still valid, no need to update it
-        return result;
+            return result;
+        } finally {
+            ChannelWaiters.release(waiter);
+        }
     }
 
-    private boolean sendToChrome(PairingResponse response) {
-        User user = ofy().load().type(User.class)
-                .filter("channelId", response.getRequestorId()).first().now();
-        if (user != null) {
-            // a reply to an actual user, wohoo!
-            if (user.isTokenExpired()) {
-                if (!OAuthManager.refreshToken(user)) {
-                    return false;
-                }
-            }
-            // token is valid, do the actual sending!
-            List<NameValuePair> parms = new ArrayList<NameValuePair>();
-            parms.add(new BasicNameValuePair("channelId", response
-                    .getRequestorId()));
-            parms.add(new BasicNameValuePair("subchannelId", "0"));
-            NameValuePair authHeader = new BasicNameValuePair("Authorization",
-                    "Bearer " + user.getAccessToken());
-            JSONObject json = new JSONObject();
-            try {
-                json.put("paired", response.getPairedId());
-                json.put("chosenID", response.getChosenId());
-                parms.add(new BasicNameValuePair("payload", json.toString()));
-                // parms.add(new BasicNameValuePair("payload", "ciao!"));
-                String reply = NetworkingUtils.post(CHROME_GCM_URL, parms,
-                        MediaType.APPLICATION_JSON_TYPE, authHeader);
-                return reply != null;
-            } catch (JSONException e) {
-                e.printStackTrace();
+    private String checkOAuth(String channelId, Deadline deadline) {
+        ProfilingEvent event = ProfilingEvent.begin(Type.OAUTH_CHECK)
+                .channel(channelId);
+        String result = "1";
+        User user = User.fromChannelId(channelId);
+        if (user == null) {
+            // never registered, or swept away by the UserSweeper
+            result = "0";
+        } else if (user.isTokenExpired()) {
+            if (!OAuthManager.refreshToken(user, deadline)) {
+                result = "0";
             }
+        } else if (user.touch()) {
+            // token is still valid, no need to update it
+            user.saveLater();
         }
-        return false;
+        event.detail(result).commit();
+        return result;
     }
 
-}
+}
\ No newline at end of file
@@ -4,6 +4,10 @@
  */
 package it.mb.whatshare;
 
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
 /**
  * Sent by a paired Android device when replying to a pairing request made by
  * the Chrome Extension.
@@ -13,10 +17,55 @@ package it.mb.whatshare;
  */
 public class PairingResponse implements Message {
 
+    /**
+     * The type of pairing responses, which is also assumed for messages that
+     * don't specify any {@link MessageRegistry#TYPE_FIELD}.
+     */
+    public static final String TYPE = "pairing";
+
+    /**
+     * Codec for pairing responses.
+     */
+    public static final MessageCodec<PairingResponse> CODEC = new MessageCodec<PairingResponse>(
+            TYPE, PairingResponse.class) {
+
+        @Override
+        public PairingResponse decode(JsonNode json) {
+            PairingResponse response = new PairingResponse();
+            response.requestorId = text(json, "requestorId");
+            response.pairedId = text(json, "pairedId");
+            response.chosenId = text(json, "chosenId");
+            return response;
+        }
+
+        @Override
+        protected JSONObject encode(PairingResponse message)
+                throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("paired", message.pairedId);
+            json.put("chosenID", message.chosenId);
+            return json;
+        }
+    };
+
     private String requestorId; // plain text
     private String pairedId; // encrypted
     private String chosenId; // encrypted
 
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * Returns the requestor ID, which is who this response must be delivered
+     * to.
+     * 
+     * @return the requestorId
+     */
+    public String getRecipientId() {
+        return requestorId;
+    }
+
     /**
      * Returns the requestor ID, which is Chrome's channelId for GCM.
      * 
@@ -0,0 +1,166 @@
+/**
+ * PairingSessions.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory table of the pairings in progress, that is of Chrome Extensions
+ * currently showing a QR code and waiting for an Android device to reply.
+ * 
+ * <p>
+ * Sessions expire {@link #TTL} milliseconds after being registered. Expiry is
+ * driven by a hashed timing wheel: each session is put in the bucket of the
+ * tick it expires at, and buckets are emptied as the wheel turns, so that
+ * registering, looking up and expiring a session all take constant time. The
+ * wheel is turned by calls to this class rather than by a background thread.
+ * 
+ * <p>
+ * Sessions only live on the node that owns their channel (see
+ * {@link ClusterRing}), and are lost on restart: Chrome Extensions just have
+ * to show a new QR code in that case. Without a cluster (e.g. on App Engine,
+ * which spreads requests over instances that don't share memory) the replying
+ * device may reach an instance that never saw the session, so the table is
+ * only a shortcut there, and replies without a session are not rejected.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class PairingSessions {
+
+    /**
+     * How long pairing sessions last, in milliseconds.
+     */
+    public static final long TTL = Long.getLong("whatshare.pairing.ttl",
+            5 * 60 * 1000L);
+    private static final long TICK = 1000L;
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * A pairing in progress.
+     */
+    public static class Session {
+
+        private final User user;
+        private final long expiryTick;
+
+        private Session(User user, long expiryTick) {
+            this.user = user;
+            this.expiryTick = expiryTick;
+        }
+
+        /**
+         * Returns the user that started this pairing, as loaded when the
+         * session was registered.
+         * 
+         * @return the user waiting for a pairing response
+         */
+        public User getUser() {
+            return user;
+        }
+    }
+
+    // everything below is guarded by PairingSessions.class
+    private static final Map<String, Session> SESSIONS = new HashMap<String, Session>();
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final Set<String>[] WHEEL = new Set[WHEEL_SIZE];
+    private static long currentTick = tick(System.currentTimeMillis());
+
+    static {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            WHEEL[i] = new HashSet<String>();
+        }
+    }
+
+    private PairingSessions() {
+        // don't instantiate me!
+    }
+
+    private static long tick(long millis) {
+        return millis / TICK;
+    }
+
+    /**
+     * Expires all sessions in the buckets the wheel went past since the last
+     * call.
+     */
+    private static void advance() {
+        long now = tick(System.currentTimeMillis());
+        // after a whole turn, every bucket has been visited once
+        long from = Math.max(currentTick + 1, now - WHEEL_MASK);
+        for (long tick = from; tick <= now; tick++) {
+            Set<String> bucket = WHEEL[(int) (tick & WHEEL_MASK)];
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            for (Iterator<String> it = bucket.iterator(); it.hasNext();) {
+                String channelId = it.next();
+                if (SESSIONS.get(channelId).expiryTick <= now) {
+                    SESSIONS.remove(channelId);
+                    it.remove();
+                } // else it's due in a later turn of the wheel
+            }
+        }
+        currentTick = Math.max(currentTick, now);
+    }
+
+    /**
+     * Registers a new pairing session for the argument <code>user</code>,
+     * replacing any session already registered for its channel.
+     * 
+     * @param user
+     *            the user that's about to show a QR code
+     */
+    public static synchronized void register(User user) {
+        advance();
+        remove(user.getChannelId());
+        long expiryTick = tick(System.currentTimeMillis() + TTL);
+        SESSIONS.put(user.getChannelId(), new Session(user, expiryTick));
+        WHEEL[(int) (expiryTick & WHEEL_MASK)].add(user.getChannelId());
+    }
+
+    /**
+     * Returns the pairing session in progress for the argument
+     * <code>channelId</code>.
+     * 
+     * @param channelId
+     *            the GCM ID of a Chrome Extension
+     * @return the session, or <code>null</code> if there's no pairing in
+     *         progress for that channel
+     */
+    public static synchronized Session get(String channelId) {
+        advance();
+        return channelId == null ? null : SESSIONS.get(channelId);
+    }
+
+    /**
+     * Ends the pairing session for the argument <code>channelId</code>, if
+     * any.
+     * 
+     * @param channelId
+     *            the GCM ID of a Chrome Extension
+     */
+    public static synchronized void remove(String channelId) {
+        Session session = SESSIONS.remove(channelId);
+        if (session != null) {
+            WHEEL[(int) (session.expiryTick & WHEEL_MASK)].remove(channelId);
+        }
+    }
+
+    /**
+     * Returns the number of pairings currently in progress.
+     * 
+     * @return how many sessions are registered
+     */
+    public static synchronized int size() {
+        advance();
+        return SESSIONS.size();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * PendingDelivery.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * A payload that couldn't be delivered to a Chrome Extension, stored until the
+ * {@link OutboundQueue} manages to deliver it or it expires.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Entity
+public class PendingDelivery {
+
+    /**
+     * This entity's ID, as assigned by GAE's datastore.
+     */
+    @Id
+    private Long id;
+
+    @Index
+    private long enqueuedAt;
+    @Index
+    private long expiresAt;
+
+    private String channelId;
+    private String payload;
+    private int attempts;
+
+    /**
+     * Creates a new pending delivery, required by objectify.
+     */
+    PendingDelivery() {
+    }
+
+    /**
+     * Creates a new pending delivery of <code>payload</code> to the argument
+     * <code>channelId</code>, which expires after <code>ttl</code>
+     * milliseconds.
+     * 
+     * @param channelId
+     *            the GCM ID of the recipient
+     * @param payload
+     *            the payload to be delivered
+     * @param ttl
+     *            how long to keep trying, in milliseconds
+     */
+    PendingDelivery(String channelId, String payload, long ttl) {
+        this.channelId = channelId;
+        this.payload = payload;
+        this.enqueuedAt = System.currentTimeMillis();
+        this.expiresAt = enqueuedAt + ttl;
+    }
+
+    /**
+     * Returns the GCM ID of the recipient.
+     * 
+     * @return the channelId
+     */
+    public String getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Returns the payload to be delivered.
+     * 
+     * @return the payload
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns when this delivery was first attempted, in milliseconds since
+     * the epoch.
+     * 
+     * @return the time this delivery was enqueued
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * Returns whether this delivery is too old to be attempted.
+     * 
+     * @param now
+     *            the current time, in milliseconds since the epoch
+     * @return <code>true</code> if this delivery expired
+     */
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    /**
+     * Returns how many times the queue tried to deliver this payload.
+     * 
+     * @return the number of failed redelivery attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Records a failed redelivery attempt.
+     */
+    public void failedAttempt() {
+        attempts++;
+    }
+
+    public String toString() {
+        // @formatter:off
+        return new StringBuilder("pendingDelivery {")
+                    .append("id: ")
+                    .append(id)
+                    .append(", channelId: '")
+                    .append(channelId)
+                    .append("', attempts: ")
+                    .append(attempts)
+                    .append("}")
+                    .toString();
+        // @formatter:on
+    }
+}
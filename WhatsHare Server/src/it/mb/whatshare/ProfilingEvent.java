@@ -0,0 +1,192 @@
+/**
+ * ProfilingEvent.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timed event, used to find out where the time goes when serving requests.
+ * 
+ * <p>
+ * Events are started with {@link #begin(Type)} and written with
+ * {@link #commit()} to the {@value #LOGGER_NAME} logger, one line per event,
+ * as <code>key=value</code> pairs that are easy to parse offline. Events are
+ * only recorded when that logger is enabled at level {@link Level#FINE} (see
+ * <code>WEB-INF/logging-profiling.properties</code>); otherwise they cost a
+ * level check and nothing more, so they can stay in place for good.
+ * 
+ * <p>
+ * Channel IDs are never logged as they are, only their hash.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public final class ProfilingEvent {
+
+    /**
+     * Name of the logger events are written to.
+     */
+    public static final String LOGGER_NAME = "it.mb.whatshare.profiling";
+
+    private static final Logger LOGGER = Logger.getLogger(LOGGER_NAME);
+    private static final ProfilingEvent DISABLED = new ProfilingEvent(null, 0);
+
+    /**
+     * What's being timed.
+     */
+    public enum Type {
+        /**
+         * A {@link PairingResponse} handled by
+         * {@link PairingManager#replyToRequest(String)}.
+         */
+        PAIRING_REPLY,
+        /**
+         * A single check of a channel's access token made by
+         * {@link PairingManager#isOAuthValid(String, long)}, which makes more
+         * than one while long polling.
+         */
+        OAUTH_CHECK,
+        /**
+         * A callback handled by {@link OAuthManager#oauthReply(String, String)}.
+         */
+        OAUTH_REPLY,
+        /**
+         * A refresh made by {@link OAuthManager#refreshToken(User, Deadline)}.
+         */
+        TOKEN_REFRESH,
+        /**
+         * A single attempt made by {@link NetworkingUtils} to post something.
+         */
+        OUTBOUND_POST,
+        /**
+         * An entity (or query) loaded from the datastore.
+         */
+        DATASTORE_LOAD,
+        /**
+         * An entity saved on the datastore.
+         */
+        DATASTORE_SAVE,
+        /**
+         * Entities deleted from the datastore.
+         */
+        DATASTORE_DELETE
+    }
+
+    private final Type type;
+    private final long start;
+    private String channelHash;
+    private int attempt;
+    private int statusCode;
+    private String detail;
+
+    private ProfilingEvent(Type type, long start) {
+        this.type = type;
+        this.start = start;
+    }
+
+    /**
+     * Returns whether events are being recorded.
+     * 
+     * @return <code>true</code> if committed events are written
+     */
+    public static boolean isEnabled() {
+        return LOGGER.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Starts timing a new event.
+     * 
+     * @param type
+     *            what's being timed
+     * @return the new event, to be committed when it ends
+     */
+    public static ProfilingEvent begin(Type type) {
+        return isEnabled() ? new ProfilingEvent(type, System.nanoTime())
+                : DISABLED;
+    }
+
+    /**
+     * Sets the channel this event is about.
+     * 
+     * @param channelId
+     *            the GCM ID of a Chrome Extension, only its hash is recorded
+     * @return this event
+     */
+    public ProfilingEvent channel(String channelId) {
+        if (this != DISABLED && channelId != null) {
+            channelHash = Integer.toHexString(channelId.hashCode());
+        }
+        return this;
+    }
+
+    /**
+     * Sets the attempt number, for events that can be retried.
+     * 
+     * @param attempt
+     *            the attempt number, starting from 1
+     * @return this event
+     */
+    public ProfilingEvent attempt(int attempt) {
+        if (this != DISABLED) {
+            this.attempt = attempt;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the status code of the reply.
+     * 
+     * @param statusCode
+     *            an HTTP status code
+     * @return this event
+     */
+    public ProfilingEvent status(int statusCode) {
+        if (this != DISABLED) {
+            this.statusCode = statusCode;
+        }
+        return this;
+    }
+
+    /**
+     * Sets some extra information about this event, such as the host posted to
+     * or the entity kind loaded.
+     * 
+     * @param detail
+     *            a short string without spaces
+     * @return this event
+     */
+    public ProfilingEvent detail(String detail) {
+        if (this != DISABLED) {
+            this.detail = detail;
+        }
+        return this;
+    }
+
+    /**
+     * Ends this event and records it.
+     */
+    public void commit() {
+        if (this == DISABLED) {
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        StringBuilder line = new StringBuilder("event=").append(type);
+        if (channelHash != null) {
+            line.append(" channel=").append(channelHash);
+        }
+        if (attempt > 0) {
+            line.append(" attempt=").append(attempt);
+        }
+        if (statusCode != 0) {
+            line.append(" status=").append(statusCode);
+        }
+        if (detail != null) {
+            line.append(" detail=").append(detail);
+        }
+        line.append(" durationMicros=").append(micros);
+        LOGGER.fine(line.toString());
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * SharePayload.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Sent by a paired Android device to share some content with the Chrome
+ * Extension it's paired with.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class SharePayload implements Message {
+
+    /**
+     * The type of share payloads.
+     */
+    public static final String TYPE = "share";
+
+    /**
+     * Codec for share payloads.
+     */
+    public static final MessageCodec<SharePayload> CODEC = new MessageCodec<SharePayload>(
+            TYPE, SharePayload.class) {
+
+        @Override
+        public SharePayload decode(JsonNode json) {
+            SharePayload payload = new SharePayload();
+            payload.channelId = text(json, "channelId");
+            payload.senderId = text(json, "senderId");
+            payload.content = text(json, "content");
+            return payload;
+        }
+
+        @Override
+        protected JSONObject encode(SharePayload message) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(MessageRegistry.TYPE_FIELD, TYPE);
+            json.put("sender", message.senderId);
+            json.put("content", message.content);
+            return json;
+        }
+    };
+
+    private String channelId; // plain text
+    private String senderId; // encrypted
+    private String content; // encrypted
+
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * Returns the channel ID of the Chrome Extension the content is shared
+     * with.
+     * 
+     * @return the channelId
+     */
+    public String getRecipientId() {
+        return channelId;
+    }
+
+    /**
+     * Returns the encrypted sender ID, which is the Android's GCM ID encrypted
+     * using the key generated by the Chrome Extension when pairing.
+     * 
+     * @return the senderId
+     */
+    public String getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Returns the encrypted content being shared.
+     * 
+     * @return the content
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Returns whether all fields are populated for this message.
+     * 
+     * @return <code>true</code> if all the fields in this message have a
+     *         non-empty value
+     */
+    public boolean isValid() {
+        return channelId != null && !channelId.isEmpty() && senderId != null
+                && !senderId.isEmpty() && content != null
+                && !content.isEmpty();
+    }
+
+    public String toString() {
+        // @formatter:off
+        return new StringBuilder("sharePayload {")
+                    .append("channelId: '")
+                    .append(channelId)
+                    .append("', senderId: '")
+                    .append(senderId)
+                    .append("', content: ")
+                    .append(content == null ? 0 : content.length())
+                    .append(" chars}")
+                    .toString();
+        // @formatter:on
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * SweepState.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Progress of the {@link UserSweeper}, saved after every batch so that each
+ * run resumes where the previous one stopped.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Entity
+public class SweepState {
+
+    /**
+     * The ID of the only instance of this entity.
+     */
+    static final String ID = "users";
+
+    @Id
+    private String id = ID;
+
+    private String cursor;
+    private long passes;
+    private long passStartedAt;
+    private long passScanned;
+    private long passDeleted;
+    private long totalScanned;
+    private long totalDeleted;
+    private long lastRunAt;
+
+    /**
+     * Returns the position in the <code>User</code> kind where the next batch
+     * starts.
+     * 
+     * @return a web-safe datastore cursor, or <code>null</code> if the next
+     *         batch starts a new pass
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns how many users were examined since the sweeper was first run.
+     * 
+     * @return the total number of users scanned
+     */
+    public long getTotalScanned() {
+        return totalScanned;
+    }
+
+    /**
+     * Returns how many users were deleted since the sweeper was first run.
+     * 
+     * @return the total number of users deleted
+     */
+    public long getTotalDeleted() {
+        return totalDeleted;
+    }
+
+    /**
+     * Records that a batch was swept.
+     * 
+     * @param scanned
+     *            how many users were examined
+     * @param deleted
+     *            how many of them were deleted
+     * @param nextCursor
+     *            where the next batch starts, or <code>null</code> if this was
+     *            the last batch of a pass
+     */
+    public void batchDone(int scanned, int deleted, String nextCursor) {
+        long now = System.currentTimeMillis();
+        if (cursor == null) {
+            passStartedAt = now;
+            passScanned = 0;
+            passDeleted = 0;
+        }
+        passScanned += scanned;
+        passDeleted += deleted;
+        totalScanned += scanned;
+        totalDeleted += deleted;
+        lastRunAt = now;
+        cursor = nextCursor;
+        if (nextCursor == null) {
+            passes++;
+        }
+    }
+
+    /**
+     * Returns a JSON representation of this state.
+     * 
+     * @return this state as a JSON object
+     * @throws JSONException
+     *             in case the object can't be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("inProgress", cursor != null);
+        json.put("completedPasses", passes);
+        json.put("passStartedAt", passStartedAt);
+        json.put("passScanned", passScanned);
+        json.put("passDeleted", passDeleted);
+        json.put("totalScanned", totalScanned);
+        json.put("totalDeleted", totalDeleted);
+        json.put("lastRunAt", lastRunAt);
+        return json;
+    }
+}
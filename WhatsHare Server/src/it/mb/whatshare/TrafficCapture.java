@@ -0,0 +1,295 @@
+/**
+ * TrafficCapture.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Keeps the most recent outbound requests made by {@link NetworkingUtils} and
+ * the replies they got, to see what's going on with other servers.
+ * 
+ * <p>
+ * Failed attempts are always recorded, successful ones are sampled (one out of
+ * <code>whatshare.capture.sampleRate</code>). Exchanges are stored in a
+ * fixed-size ring buffer that's written to without locking, so the requests
+ * being captured don't wait for each other; header values and body fields
+ * carrying credentials are redacted, and bodies are truncated.
+ * 
+ * <p>
+ * The buffer can be read at <code>/capture</code>, and appended to the file set
+ * in the <code>whatshare.capture.file</code> system property at
+ * <code>/capture/dump</code> (if the file system is writable, which is not the
+ * case on App Engine).
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Path("/capture")
+public class TrafficCapture {
+
+    private static final int BUFFER_SIZE = 256;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    private static final int MAX_BODY_LENGTH = 512;
+    private static final int SAMPLE_RATE = Math.max(1,
+            Integer.getInteger("whatshare.capture.sampleRate", 10));
+    private static final String DUMP_FILE = System
+            .getProperty("whatshare.capture.file");
+    private static final String REDACTED = "<redacted>";
+    private static final String SECRETS = "client_secret|refresh_token|access_token|id_token|code";
+    private static final Pattern FORM_SECRETS = Pattern.compile("\\b("
+            + SECRETS + ")=[^&]*");
+    private static final Pattern JSON_SECRETS = Pattern.compile("\"("
+            + SECRETS + ")\"(\\s*):(\\s*)\"[^\"]*\"");
+    private static final Pattern SECRET_HEADERS = Pattern.compile(
+            "authorization|cookie", Pattern.CASE_INSENSITIVE);
+
+    private static final AtomicReferenceArray<Exchange> BUFFER = new AtomicReferenceArray<Exchange>(
+            BUFFER_SIZE);
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong sampled = new AtomicLong();
+    // guarded by TrafficCapture.class
+    private static long dumped;
+
+    /**
+     * A request and the reply it got, with all secrets redacted.
+     */
+    private static class Exchange {
+
+        private final long sequence;
+        private final long timestamp;
+        private final String method;
+        private final String url;
+        private final int attempt;
+        private final JSONObject headers;
+        private final String requestBody;
+        private final int statusCode;
+        private final String responseBody;
+        private final String error;
+        private final long duration;
+
+        private Exchange(long sequence, HttpRequestBase request, int attempt,
+                int statusCode, String responseBody, String error,
+                long duration) {
+            this.sequence = sequence;
+            this.timestamp = System.currentTimeMillis();
+            this.method = request.getMethod();
+            this.url = request.getURI().toString();
+            this.attempt = attempt;
+            this.headers = redactHeaders(request.getAllHeaders());
+            this.requestBody = requestBody(request);
+            this.statusCode = statusCode;
+            this.responseBody = redactBody(responseBody);
+            this.error = error;
+            this.duration = duration;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("sequence", sequence);
+            json.put("timestamp", timestamp);
+            json.put("method", method);
+            json.put("url", url);
+            json.put("attempt", attempt);
+            json.put("headers", headers);
+            json.put("requestBody", requestBody);
+            json.put("statusCode", statusCode);
+            json.put("responseBody", responseBody);
+            json.put("error", error);
+            json.put("durationMillis", duration);
+            return json;
+        }
+    }
+
+    /**
+     * Decides whether the next successful request should be recorded.
+     * 
+     * @return <code>true</code> if the exchange should be recorded even if it
+     *         succeeds
+     */
+    public static boolean sample() {
+        return sampled.getAndIncrement() % SAMPLE_RATE == 0;
+    }
+
+    /**
+     * Records an attempt to execute the argument <code>request</code>.
+     * 
+     * @param request
+     *            the request that was sent
+     * @param attempt
+     *            the attempt number, starting from 1
+     * @param statusCode
+     *            the HTTP status of the reply, or <code>0</code> if no reply
+     *            was received
+     * @param responseBody
+     *            the body of the reply, can be <code>null</code>
+     * @param error
+     *            what went wrong when no reply was received, can be
+     *            <code>null</code>
+     * @param duration
+     *            how long the attempt took, in milliseconds
+     */
+    public static void record(HttpRequestBase request, int attempt,
+            int statusCode, String responseBody, String error, long duration) {
+        long sequence = written.getAndIncrement();
+        BUFFER.set((int) (sequence & BUFFER_MASK), new Exchange(sequence,
+                request, attempt, statusCode, responseBody, error, duration));
+    }
+
+    /**
+     * Returns the exchanges currently in the buffer, oldest first.
+     */
+    private static List<Exchange> snapshot() {
+        long end = written.get();
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (long sequence = Math.max(0, end - BUFFER_SIZE); sequence < end; sequence++) {
+            Exchange exchange = BUFFER.get((int) (sequence & BUFFER_MASK));
+            // slots can be overwritten (or still empty) while we read them
+            if (exchange != null && exchange.sequence == sequence) {
+                exchanges.add(exchange);
+            }
+        }
+        return exchanges;
+    }
+
+    private static JSONObject redactHeaders(Header[] headers) {
+        JSONObject json = new JSONObject();
+        for (Header header : headers) {
+            try {
+                json.put(header.getName(), SECRET_HEADERS.matcher(
+                        header.getName()).matches() ? REDACTED : header
+                        .getValue());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        return json;
+    }
+
+    private static String requestBody(HttpRequestBase request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest withBody = (HttpEntityEnclosingRequest) request;
+            if (withBody.getEntity() != null
+                    && withBody.getEntity().isRepeatable()) {
+                try {
+                    return redactBody(EntityUtils.toString(withBody
+                            .getEntity()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String redactBody(String body) {
+        if (body == null) {
+            return null;
+        }
+        // truncating first could cut a secret where patterns can't match it
+        body = FORM_SECRETS.matcher(body).replaceAll("$1=" + REDACTED);
+        body = JSON_SECRETS.matcher(body).replaceAll(
+                "\"$1\"$2:$3\"" + REDACTED + "\"");
+        if (body.length() > MAX_BODY_LENGTH) {
+            body = body.substring(0, MAX_BODY_LENGTH) + "...";
+        }
+        return body;
+    }
+
+    /**
+     * Returns the exchanges currently in the buffer, oldest first.
+     * 
+     * @return a JSON array of exchanges
+     * @throws JSONException
+     *             in case the reply can't be created
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String read() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Exchange exchange : snapshot()) {
+            json.put(exchange.toJson());
+        }
+        return json.toString();
+    }
+
+    /**
+     * Appends the exchanges recorded since the last dump to the file set in
+     * the <code>whatshare.capture.file</code> system property, one JSON
+     * object per line.
+     * 
+     * <p>
+     * Dumps only happen when asked for, so writing to disk never slows down
+     * the requests being captured.
+     * 
+     * @return a summary of what was written
+     * @throws JSONException
+     *             in case the exchanges can't be converted to JSON
+     */
+    @GET
+    @Path("dump")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String dump() throws JSONException {
+        if (DUMP_FILE == null) {
+            throw new WebApplicationException(Response
+                    .status(Status.NOT_FOUND)
+                    .entity("whatshare.capture.file is not set").build());
+        }
+        synchronized (TrafficCapture.class) {
+            int count = 0;
+            long last = dumped;
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(new FileOutputStream(
+                        DUMP_FILE, true), "UTF-8");
+                for (Exchange exchange : snapshot()) {
+                    if (exchange.sequence >= dumped) {
+                        writer.write(exchange.toJson().toString());
+                        writer.write('\n');
+                        last = exchange.sequence + 1;
+                        count++;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            dumped = last;
+            return String.format("dumped %d exchanges to %s", count,
+                    DUMP_FILE);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * UnpairNotice.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Sent by an Android device when the user removes its pairing with a Chrome
+ * Extension.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+public class UnpairNotice implements Message {
+
+    /**
+     * The type of unpair notices.
+     */
+    public static final String TYPE = "unpair";
+
+    /**
+     * Codec for unpair notices.
+     */
+    public static final MessageCodec<UnpairNotice> CODEC = new MessageCodec<UnpairNotice>(
+            TYPE, UnpairNotice.class) {
+
+        @Override
+        public UnpairNotice decode(JsonNode json) {
+            UnpairNotice notice = new UnpairNotice();
+            notice.channelId = text(json, "channelId");
+            notice.pairedId = text(json, "pairedId");
+            return notice;
+        }
+
+        @Override
+        protected JSONObject encode(UnpairNotice message) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(MessageRegistry.TYPE_FIELD, TYPE);
+            json.put("paired", message.pairedId);
+            return json;
+        }
+    };
+
+    private String channelId; // plain text
+    private String pairedId; // encrypted
+
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * Returns the channel ID of the Chrome Extension the Android device was
+     * paired with.
+     * 
+     * @return the channelId
+     */
+    public String getRecipientId() {
+        return channelId;
+    }
+
+    /**
+     * Returns the encrypted paired ID, which is the Android's GCM ID encrypted
+     * using the key generated by the Chrome Extension when pairing.
+     * 
+     * @return the pairedId
+     */
+    public String getPairedId() {
+        return pairedId;
+    }
+
+    /**
+     * Returns whether all fields are populated for this message.
+     * 
+     * @return <code>true</code> if all the fields in this message have a
+     *         non-empty value
+     */
+    public boolean isValid() {
+        return channelId != null && !channelId.isEmpty() && pairedId != null
+                && !pairedId.isEmpty();
+    }
+
+    public String toString() {
+        // @formatter:off
+        return new StringBuilder("unpairNotice {")
+                    .append("channelId: '")
+                    .append(channelId)
+                    .append("', pairedId: '")
+                    .append(pairedId)
+                    .append("'}")
+                    .toString();
+        // @formatter:on
+    }
+
+}
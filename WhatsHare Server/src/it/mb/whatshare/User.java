@@ -5,6 +5,7 @@
 package it.mb.whatshare;
 
 import static it.mb.whatshare.ObjectifyCustomService.ofy;
+import it.mb.whatshare.ProfilingEvent.Type;
 
 import java.util.Map;
 
@@ -22,6 +23,7 @@ import com.googlecode.objectify.annotation.Index;
 public class User {
 
     private static final long TOKEN_EXPIRATION_TOLERANCE = 60 * 1000;
+    private static final long LAST_SEEN_GRANULARITY = 24 * 60 * 60 * 1000L;
 
     /**
      * This entity's ID, as assigned by GAE's datastore.
@@ -35,6 +37,8 @@ public class User {
     private String refreshToken;
     private String accessToken;
     private long tokenExpiration;
+    private long lastSeen;
+    private int refreshFailures;
 
     /**
      * Updates fields of this object according to the argument
@@ -84,8 +88,33 @@ public class User {
      * @return the user if found, <code>null</code> otherwise
      */
     public static User fromChannelId(String channelId) {
-        return ofy().load().type(User.class).filter("channelId", channelId)
-                .first().now();
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                .channel(channelId).detail("User");
+        User user = ofy().load().type(User.class)
+                .filter("channelId", channelId).first().now();
+        event.commit();
+        return user;
+    }
+
+    /**
+     * Saves this user on the datastore, and waits for the write to complete.
+     */
+    public void save() {
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_SAVE)
+                .channel(channelId).detail("User");
+        ofy().save().entity(this).now();
+        event.commit();
+    }
+
+    /**
+     * Saves this user on the datastore without waiting for the write to
+     * complete, which happens before the current request ends.
+     */
+    public void saveLater() {
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_SAVE)
+                .channel(channelId).detail("User(async)");
+        ofy().save().entity(this);
+        event.commit();
     }
 
     /**
@@ -99,22 +128,37 @@ public class User {
      *            the authorization code to be used with Google's OAuth2 servers
      * @param channelId
      *            the GCM ID of the user
+     * @param deadline
+     *            the deadline for the request on whose behalf the user is
+     *            created
      * @return a user with its tokens set (and saved in the datastore) or
      *         <code>null</code> if a user couldn't be created for the argument
      *         parameters
      */
-    public static User fromAuthCode(String authCode, String channelId) {
+    public static User fromAuthCode(String authCode, String channelId,
+            Deadline deadline) {
         if (authCode != null && authCode.length() > 0) {
-            Map<String, String> auth = OAuthManager.getAccessToken(authCode);
+            Map<String, String> auth = OAuthManager.getAccessToken(authCode,
+                    deadline);
             User user = new User();
             if (user.setOauthParms(auth, channelId)) {
-                ofy().save().entity(user).now();
+                user.touch();
+                user.save();
                 return user;
             }
         }
         return null;
     }
 
+    /**
+     * Returns the Chrome Extension's GCM id for this user.
+     * 
+     * @return the channelId
+     */
+    public String getChannelId() {
+        return channelId;
+    }
+
     /**
      * Returns the refresh token in use for this user.
      * 
@@ -133,6 +177,65 @@ public class User {
         return accessToken;
     }
 
+    /**
+     * Returns when this user was last involved in a request, with a
+     * granularity of one day.
+     * 
+     * @return the last time this user was seen, in milliseconds since the
+     *         epoch, or <code>0</code> if it was never recorded
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Records that this user is still around.
+     * 
+     * <p>
+     * To save writes, the last time this user was seen is only updated once a
+     * day: callers must save this user on the datastore when this method
+     * returns <code>true</code>.
+     * 
+     * @return <code>true</code> if this user was modified
+     */
+    public boolean touch() {
+        long now = System.currentTimeMillis();
+        if (now - lastSeen < LAST_SEEN_GRANULARITY) {
+            return false;
+        }
+        lastSeen = now;
+        return true;
+    }
+
+    /**
+     * Returns how many times in a row Google's OAuth2 servers rejected the
+     * refresh token for this user.
+     * 
+     * @return the number of consecutive rejected refreshes
+     */
+    public int getRefreshFailures() {
+        return refreshFailures;
+    }
+
+    /**
+     * Records that the access token for this user was refreshed.
+     */
+    public void refreshed() {
+        refreshFailures = 0;
+    }
+
+    /**
+     * Records that Google's OAuth2 servers rejected the refresh token for this
+     * user.
+     * 
+     * <p>
+     * Refreshes that fail because the servers can't be reached (or don't
+     * reply in time) say nothing about the token, and must not be recorded.
+     */
+    public void refreshRejected() {
+        refreshFailures++;
+    }
+
     private void tokenExpiresIn(int delayInSeconds) {
         this.tokenExpiration = System.currentTimeMillis()
                 + (delayInSeconds * 1000);
@@ -0,0 +1,172 @@
+/**
+ * UserSweeper.java Created on 19 Oct 2026 Copyright 2026 Michele Bonazza
+ * <michele.bonazza@gmail.com>
+ */
+package it.mb.whatshare;
+
+import static it.mb.whatshare.ObjectifyCustomService.ofy;
+import it.mb.whatshare.ProfilingEvent.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jettison.json.JSONException;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Deletes {@link User}'s that are not coming back, so that the
+ * <code>User</code> kind and its <code>channelId</code> index don't grow
+ * forever as extensions are uninstalled.
+ * 
+ * <p>
+ * A user is stale if Google's OAuth2 servers rejected its refresh token
+ * <code>whatshare.sweeper.maxRefreshFailures</code> times in a row (which
+ * means it was most likely revoked), or if it wasn't seen for
+ * <code>whatshare.sweeper.inactiveDays</code> days. Refreshes that fail
+ * because of an outage don't count.
+ * 
+ * <p>
+ * The sweeper walks the whole kind with a datastore cursor, a few small
+ * batches per run (see <code>cron.xml</code>), pausing between batches so
+ * that live traffic doesn't have to compete with it. Progress is stored in
+ * {@link SweepState}, so every run resumes where the last one stopped.
+ * 
+ * @author Michele Bonazza
+ * 
+ */
+@Path("/sweeper")
+public class UserSweeper {
+
+    private static final int BATCH_SIZE = Integer.getInteger(
+            "whatshare.sweeper.batchSize", 100);
+    private static final int BATCHES_PER_RUN = Integer.getInteger(
+            "whatshare.sweeper.batchesPerRun", 10);
+    private static final long BATCH_PAUSE = Long.getLong(
+            "whatshare.sweeper.batchPause", 1000L);
+    private static final int MAX_REFRESH_FAILURES = Integer.getInteger(
+            "whatshare.sweeper.maxRefreshFailures", 5);
+    private static final long INACTIVITY_HORIZON = Long.getLong(
+            "whatshare.sweeper.inactiveDays", 180L) * 24 * 60 * 60 * 1000;
+
+    /**
+     * Sweeps up to <code>whatshare.sweeper.batchesPerRun</code> batches of
+     * users.
+     * 
+     * <p>
+     * Called by cron.
+     * 
+     * @return a summary of what happened
+     */
+    @GET
+    @Path("run")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String run() {
+        SweepState state = loadState();
+        long scanned = state.getTotalScanned();
+        long deleted = state.getTotalDeleted();
+        for (int i = 0; i < BATCHES_PER_RUN; i++) {
+            if (i > 0) {
+                try {
+                    Thread.sleep(BATCH_PAUSE);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+            sweepBatch(state);
+            if (state.getCursor() == null) {
+                // end of a pass, start the next one on the next run
+                break;
+            }
+        }
+        String summary = String.format("scanned %d users, deleted %d",
+                state.getTotalScanned() - scanned, state.getTotalDeleted()
+                        - deleted);
+        System.out.println("sweeper: " + summary);
+        return summary;
+    }
+
+    /**
+     * Returns the progress of the sweeper.
+     * 
+     * @return a JSON object describing the sweeper's state
+     * @throws JSONException
+     *             in case the reply can't be created
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String status() throws JSONException {
+        return loadState().toJson().toString();
+    }
+
+    private static SweepState loadState() {
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                .detail("SweepState");
+        SweepState state = ofy().load().type(SweepState.class)
+                .id(SweepState.ID).now();
+        event.commit();
+        return state == null ? new SweepState() : state;
+    }
+
+    /**
+     * Sweeps a single batch, starting from the cursor in <code>state</code>,
+     * and saves the updated state.
+     */
+    private static void sweepBatch(SweepState state) {
+        Query<User> query = ofy().load().type(User.class).limit(BATCH_SIZE);
+        if (state.getCursor() != null) {
+            query = query.startAt(Cursor.fromWebSafeString(state.getCursor()));
+        }
+        long now = System.currentTimeMillis();
+        List<User> stale = new ArrayList<User>();
+        List<User> stamped = new ArrayList<User>();
+        int scanned = 0;
+        // checking users takes next to nothing, this times the query
+        ProfilingEvent event = ProfilingEvent.begin(Type.DATASTORE_LOAD)
+                .detail("User(query)");
+        QueryResultIterator<User> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            User user = iterator.next();
+            scanned++;
+            if (isStale(user, now)) {
+                stale.add(user);
+            } else if (user.getLastSeen() == 0 && user.touch()) {
+                // registered before we kept track, start counting from now
+                stamped.add(user);
+            }
+        }
+        event.commit();
+        if (!stale.isEmpty()) {
+            event = ProfilingEvent.begin(Type.DATASTORE_DELETE).detail("User");
+            ofy().delete().entities(stale).now();
+            event.commit();
+        }
+        if (!stamped.isEmpty()) {
+            event = ProfilingEvent.begin(Type.DATASTORE_SAVE).detail("User");
+            ofy().save().entities(stamped).now();
+            event.commit();
+        }
+        String next = scanned < BATCH_SIZE ? null : iterator.getCursor()
+                .toWebSafeString();
+        state.batchDone(scanned, stale.size(), next);
+        event = ProfilingEvent.begin(Type.DATASTORE_SAVE).detail("SweepState");
+        ofy().save().entity(state).now();
+        event.commit();
+    }
+
+    private static boolean isStale(User user, long now) {
+        if (user.getRefreshFailures() >= MAX_REFRESH_FAILURES) {
+            return true;
+        }
+        return user.getLastSeen() > 0
+                && now - user.getLastSeen() > INACTIVITY_HORIZON;
+    }
+}